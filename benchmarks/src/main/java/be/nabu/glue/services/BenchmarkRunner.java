@@ -0,0 +1,37 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all the benchmarks (or those matching the first argument) with the gc profiler attached so allocation rates are reported.
+ */
+public class BenchmarkRunner {
+	public static void main(String...args) throws RunnerException {
+		Options options = new OptionsBuilder()
+			.include(args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*Benchmark")
+			.addProfiler(GCProfiler.class)
+			.build();
+		new Runner(options).run();
+	}
+}
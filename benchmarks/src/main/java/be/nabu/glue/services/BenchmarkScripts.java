@@ -0,0 +1,128 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import be.nabu.glue.api.ExecutorGroup;
+import be.nabu.glue.api.Parser;
+import be.nabu.glue.api.Script;
+import be.nabu.glue.api.ScriptRepository;
+import be.nabu.glue.core.impl.parsers.GlueParserProvider;
+import be.nabu.libs.metrics.api.MetricInstance;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.SecurityContext;
+import be.nabu.libs.services.api.ServiceContext;
+import be.nabu.libs.services.api.TransactionContext;
+
+/**
+ * In-memory glue scripts for the benchmarks that need a parsed script, the scripts don't belong to a repository so they can't reference defined types.
+ */
+public class BenchmarkScripts {
+
+	// a script with a handful of inputs and a returned output
+	public static final String GREETING = "name ?= null\ncount ?= 1\n@return\ngreeting = \"hello \" + name\n@return\ntotal = count * 2\n";
+
+	public static Script newScript(String name, String content) {
+		return new MemoryScript(name, content);
+	}
+
+	/**
+	 * A service execution context without security, transactions or metrics.
+	 */
+	public static ExecutionContext newExecutionContext() {
+		return new ExecutionContext() {
+			@Override
+			public SecurityContext getSecurityContext() {
+				return null;
+			}
+			@Override
+			public ServiceContext getServiceContext() {
+				return null;
+			}
+			@Override
+			public TransactionContext getTransactionContext() {
+				return null;
+			}
+			@Override
+			public MetricInstance getMetricInstance(String id) {
+				return null;
+			}
+		};
+	}
+
+	private static class MemoryScript implements Script {
+		private String name;
+		private String content;
+		private Charset charset = Charset.forName("UTF-8");
+		private Parser parser;
+		private ExecutorGroup root;
+
+		public MemoryScript(String name, String content) {
+			this.name = name;
+			this.content = content;
+			this.parser = new GlueParserProvider().newParser(null, name + ".glue");
+		}
+		@Override
+		public ScriptRepository getRepository() {
+			return null;
+		}
+		@Override
+		public String getNamespace() {
+			return "benchmark";
+		}
+		@Override
+		public String getName() {
+			return name;
+		}
+		@Override
+		public synchronized ExecutorGroup getRoot() throws IOException, ParseException {
+			if (root == null) {
+				root = parser.parse(new StringReader(content));
+			}
+			return root;
+		}
+		@Override
+		public Charset getCharset() {
+			return charset;
+		}
+		@Override
+		public Parser getParser() {
+			return parser;
+		}
+		@Override
+		public InputStream getSource() throws IOException {
+			return new ByteArrayInputStream(content.getBytes(charset));
+		}
+		public InputStream getResource(String name) throws IOException {
+			return null;
+		}
+		public Iterator<String> iterator() {
+			List<String> empty = new ArrayList<String>();
+			return empty.iterator();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.DefinedServiceLister;
+import be.nabu.libs.services.api.ServiceInstance;
+import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * In-memory stand-ins for the types and services the benchmarks run against.
+ */
+public class BenchmarkTypes {
+
+	public static Structure newItem(String name) {
+		Structure structure = new Structure();
+		structure.setName(name);
+		structure.add(new SimpleElementImpl<String>("name", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), structure));
+		structure.add(new SimpleElementImpl<Integer>("value", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), structure));
+		return structure;
+	}
+
+	public static Structure newFlat(String name, int fields) {
+		Structure structure = new Structure();
+		structure.setName(name);
+		for (int i = 0; i < fields; i++) {
+			structure.add(new SimpleElementImpl<String>("field" + i, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), structure));
+		}
+		return structure;
+	}
+
+	public static Structure newNested(String name, ComplexType item) {
+		Structure structure = new Structure();
+		structure.setName(name);
+		structure.add(new ComplexElementImpl("item", item, structure));
+		return structure;
+	}
+
+	public static Structure newList(String name, ComplexType item) {
+		Structure structure = new Structure();
+		structure.setName(name);
+		structure.add(new ComplexElementImpl("items", item, structure, new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+		return structure;
+	}
+
+	public static DefinedServiceLister newLister(final int amount, final int namespaces) {
+		final List<DefinedService> services = new ArrayList<DefinedService>();
+		for (int i = 0; i < amount; i++) {
+			services.add(newService("benchmark.namespace" + (i % namespaces) + ".service" + i, newFlat("input", 5), newList("output", newItem("item"))));
+		}
+		return new DefinedServiceLister() {
+			@Override
+			public List<DefinedService> getServices() {
+				return services;
+			}
+		};
+	}
+
+	public static DefinedService newService(final String id, final ComplexType input, final ComplexType output) {
+		final ServiceInterface serviceInterface = new ServiceInterface() {
+			@Override
+			public ComplexType getInputDefinition() {
+				return input;
+			}
+			@Override
+			public ComplexType getOutputDefinition() {
+				return output;
+			}
+			@Override
+			public ServiceInterface getParent() {
+				return null;
+			}
+		};
+		return new DefinedService() {
+			@Override
+			public ServiceInterface getServiceInterface() {
+				return serviceInterface;
+			}
+			@Override
+			public ServiceInstance newInstance() {
+				return null;
+			}
+			@Override
+			public Set<String> getReferences() {
+				return null;
+			}
+			@Override
+			public String getId() {
+				return id;
+			}
+		};
+	}
+
+	public static class Item {
+		private String name;
+		private Integer value;
+
+		public Item() {
+			// auto
+		}
+		public Item(String name, Integer value) {
+			this.name = name;
+			this.value = value;
+		}
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+		public Integer getValue() {
+			return value;
+		}
+		public void setValue(Integer value) {
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.map.MapContent;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Measures the output mapping that GlueServiceInstance performs after the script has run: flat, nested and list outputs.
+ * The list variants cover items that can be set as is, items that need a MaskedContent and beans that go through the ComplexContentWrapperFactory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindingPlanBenchmark {
+
+	@Param({ "10", "1000" })
+	private int size;
+
+	private GlueServiceBindingPlan flat, nested, list;
+	private Map<String, Object> flatPipeline, nestedPipeline, sameTypePipeline, maskedPipeline, beanPipeline;
+	private ComplexContent input;
+
+	@Setup
+	public void setup() {
+		Structure item = BenchmarkTypes.newItem("item");
+		Structure other = BenchmarkTypes.newItem("other");
+		Structure flatType = BenchmarkTypes.newFlat("output", 10);
+		flat = new GlueServiceBindingPlan(flatType, flatType);
+		nested = new GlueServiceBindingPlan(flatType, BenchmarkTypes.newNested("output", item));
+		list = new GlueServiceBindingPlan(flatType, BenchmarkTypes.newList("output", item));
+
+		flatPipeline = new HashMap<String, Object>();
+		input = flatType.newInstance();
+		for (int i = 0; i < 10; i++) {
+			flatPipeline.put("field" + i, "value" + i);
+			input.set("field" + i, "value" + i);
+		}
+		nestedPipeline = new HashMap<String, Object>();
+		nestedPipeline.put("item", newItem(item, 0));
+
+		List<Object> sameType = new ArrayList<Object>();
+		List<Object> masked = new ArrayList<Object>();
+		List<Object> beans = new ArrayList<Object>();
+		for (int i = 0; i < size; i++) {
+			sameType.add(newItem(item, i));
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("name", "name" + i);
+			map.put("value", i);
+			masked.add(new MapContent(other, map));
+			beans.add(new BenchmarkTypes.Item("name" + i, i));
+		}
+		sameTypePipeline = new HashMap<String, Object>();
+		sameTypePipeline.put("items", sameType);
+		maskedPipeline = new HashMap<String, Object>();
+		maskedPipeline.put("items", masked);
+		beanPipeline = new HashMap<String, Object>();
+		beanPipeline.put("items", beans);
+	}
+
+	private static ComplexContent newItem(Structure type, int index) {
+		ComplexContent content = type.newInstance();
+		content.set("name", "name" + index);
+		content.set("value", index);
+		return content;
+	}
+
+	@Benchmark
+	public Map<String, Object> mapInput() {
+		return flat.mapInput(input);
+	}
+
+	@Benchmark
+	public ComplexContent mapFlatOutput() {
+		return flat.mapOutput(flatPipeline);
+	}
+
+	@Benchmark
+	public ComplexContent mapNestedOutput() {
+		return nested.mapOutput(nestedPipeline);
+	}
+
+	@Benchmark
+	public ComplexContent mapListOutput() {
+		return list.mapOutput(sameTypePipeline);
+	}
+
+	@Benchmark
+	public ComplexContent mapMaskedListOutput() {
+		return list.mapOutput(maskedPipeline);
+	}
+
+	@Benchmark
+	public ComplexContent mapWrappedListOutput() {
+		return list.mapOutput(beanPipeline);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.glue.api.Script;
+import be.nabu.glue.impl.SimpleExecutionEnvironment;
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * Measures the glue service itself: reading the derived interface from many threads at once (with and without the script being swapped underneath) and a full execution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GlueServiceBenchmark {
+
+	private GlueService service, swapped;
+	private Script first, second;
+	private ExecutionContext executionContext;
+	private ComplexContent input;
+
+	@Setup
+	public void setup() throws ServiceException {
+		first = BenchmarkScripts.newScript("greeting", BenchmarkScripts.GREETING);
+		second = BenchmarkScripts.newScript("greeting", BenchmarkScripts.GREETING);
+		service = new GlueService(first, new SimpleExecutionEnvironment("benchmark"), null);
+		swapped = new GlueService(first, new SimpleExecutionEnvironment("benchmark"), null);
+		executionContext = BenchmarkScripts.newExecutionContext();
+		input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("name", "benchmark");
+		input.set("count", 21);
+		// warm up the parse and the derivation
+		new ServiceRuntime(service, executionContext).run(input);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public ServiceInterface contendedServiceInterface() {
+		return service.getServiceInterface();
+	}
+
+	// every so often a thread swaps the script, the others must rederive without blocking
+	@Benchmark
+	@Threads(8)
+	public ServiceInterface contendedServiceInterfaceWithReload() {
+		if (System.nanoTime() % 1000 == 0) {
+			swapped.setScript(swapped.getScript() == first ? second : first);
+		}
+		return swapped.getServiceInterface();
+	}
+
+	@Benchmark
+	public ComplexContent execute() throws ServiceException {
+		return new ServiceRuntime(service, executionContext).run(input);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public ComplexContent contendedExecute() throws ServiceException {
+		return new ServiceRuntime(service, executionContext).run(input);
+	}
+}
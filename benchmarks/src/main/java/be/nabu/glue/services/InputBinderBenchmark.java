@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Measures the argument binding of a glue service call: scalars, varargs and lists of complex content, beans and maps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputBinderBenchmark {
+
+	@Param({ "10", "1000" })
+	private int size;
+
+	private ServiceInputBinder scalars, lists;
+	private Object [] scalarArguments, varargs, compatible, beans, maps;
+
+	@Setup
+	public void setup() {
+		ServiceMethodProvider provider = new ServiceMethodProvider(null, null);
+		Structure item = BenchmarkTypes.newItem("item");
+		scalars = provider.getBinder(BenchmarkTypes.newService("benchmark.scalars", BenchmarkTypes.newFlat("input", 10), BenchmarkTypes.newFlat("output", 1)));
+		lists = provider.getBinder(BenchmarkTypes.newService("benchmark.lists", BenchmarkTypes.newList("input", item), BenchmarkTypes.newFlat("output", 1)));
+
+		scalarArguments = new Object[10];
+		for (int i = 0; i < scalarArguments.length; i++) {
+			scalarArguments[i] = "value" + i;
+		}
+		List<Object> compatibleList = new ArrayList<Object>();
+		List<Object> beanList = new ArrayList<Object>();
+		List<Object> mapList = new ArrayList<Object>();
+		varargs = new Object[size];
+		for (int i = 0; i < size; i++) {
+			ComplexContent content = item.newInstance();
+			content.set("name", "name" + i);
+			content.set("value", i);
+			compatibleList.add(content);
+			varargs[i] = content;
+			beanList.add(new BenchmarkTypes.Item("name" + i, i));
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("name", "name" + i);
+			map.put("value", i);
+			mapList.add(map);
+		}
+		compatible = new Object[] { compatibleList };
+		beans = new Object[] { beanList };
+		maps = new Object[] { mapList };
+	}
+
+	@Benchmark
+	public ComplexContent bindScalars() {
+		return scalars.bind(scalarArguments);
+	}
+
+	@Benchmark
+	public ComplexContent bindVarargs() {
+		return lists.bind(varargs);
+	}
+
+	@Benchmark
+	public ComplexContent bindCompatibleList() {
+		return lists.bind(compatible);
+	}
+
+	@Benchmark
+	public ComplexContent bindBeanList() {
+		return lists.bind(beans);
+	}
+
+	@Benchmark
+	public ComplexContent bindMapList() {
+		return lists.bind(maps);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.glue.api.MethodDescription;
+import be.nabu.libs.services.api.DefinedServiceLister;
+
+/**
+ * Measures building the method catalogue from a synthetic lister, both from scratch and once it is warm, as well as method resolution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MethodCatalogueBenchmark {
+
+	@Param({ "10000" })
+	private int services;
+
+	private DefinedServiceLister lister;
+	private ServiceMethodProvider warm;
+
+	@Setup
+	public void setup() {
+		lister = BenchmarkTypes.newLister(services, 100);
+		warm = new ServiceMethodProvider(lister, null);
+		warm.getAvailableMethods();
+	}
+
+	@Benchmark
+	public List<MethodDescription> coldAvailableMethods() {
+		return new ServiceMethodProvider(lister, null).getAvailableMethods();
+	}
+
+	@Benchmark
+	public List<MethodDescription> coldNamespace() {
+		return new ServiceMethodProvider(lister, null).getAvailableMethods("benchmark.namespace42");
+	}
+
+	@Benchmark
+	@Threads(8)
+	public List<MethodDescription> warmAvailableMethods() {
+		return warm.getAvailableMethods();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object resolveUnknownMethod() {
+		return warm.resolve("notAService");
+	}
+}
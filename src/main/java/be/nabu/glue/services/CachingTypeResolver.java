@@ -0,0 +1,131 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.types.DefinedTypeResolverFactory;
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.libs.types.api.DefinedTypeResolver;
+
+/**
+ * Remembers the types resolved by the glue services of a repository, including the ids that could not be resolved and fell back to Object.
+ * The warning for an unknown type is logged at most once per interval, no matter how often it is looked up.
+ * Because misses are remembered as well, the resolver must be invalidated when types are (re)deployed.
+ * Reloading a glue service forgets all the types of its repository so redeployed types are picked up, invalidating a script in the compilation cache only forgets the misses.
+ */
+public class CachingTypeResolver implements DefinedTypeResolver {
+
+	private static final long WARNING_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+	
+	// one resolver per repository root, the roots are not kept alive by us
+	private static Map<Object, CachingTypeResolver> resolvers = Collections.synchronizedMap(new WeakHashMap<Object, CachingTypeResolver>());
+	
+	public static CachingTypeResolver getInstance(Object root) {
+		synchronized(resolvers) {
+			CachingTypeResolver resolver = resolvers.get(root);
+			if (resolver == null) {
+				resolver = new CachingTypeResolver(DefinedTypeResolverFactory.getInstance().getResolver());
+				resolvers.put(root, resolver);
+			}
+			return resolver;
+		}
+	}
+	
+	/**
+	 * Invalidates the types of all repositories.
+	 */
+	public static void invalidateAllResolvers() {
+		synchronized(resolvers) {
+			for (CachingTypeResolver resolver : resolvers.values()) {
+				resolver.invalidateAll();
+			}
+		}
+	}
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private DefinedTypeResolver parent;
+	private ConcurrentMap<String, DefinedType> resolved = new ConcurrentHashMap<String, DefinedType>();
+	private ConcurrentMap<String, Long> warned = new ConcurrentHashMap<String, Long>();
+	// the ids that fell back to Object
+	private Set<String> missed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	public CachingTypeResolver(DefinedTypeResolver parent) {
+		this.parent = parent;
+	}
+	
+	@Override
+	public DefinedType resolve(String id) {
+		DefinedType type = resolved.get(id);
+		if (type == null) {
+			type = parent.resolve(id);
+			if (type == null) {
+				warn(id);
+				missed.add(id);
+				type = parent.resolve(Object.class.getName());
+			}
+			if (type != null) {
+				resolved.putIfAbsent(id, type);
+			}
+		}
+		return type;
+	}
+	
+	private void warn(String id) {
+		long now = System.currentTimeMillis();
+		Long last = warned.get(id);
+		if (last == null ? warned.putIfAbsent(id, now) == null : (now - last >= WARNING_INTERVAL && warned.replace(id, last, now))) {
+			logger.warn("Could not resolve type '" + id + "', falling back to Object");
+		}
+	}
+	
+	public void invalidate(String...ids) {
+		for (String id : ids) {
+			resolved.remove(id);
+			missed.remove(id);
+		}
+		// the conversions may refer to the old types
+		ConversionCache.getInstance().clear();
+	}
+	
+	public void invalidateMisses() {
+		for (String id : missed) {
+			missed.remove(id);
+			resolved.remove(id);
+		}
+	}
+	
+	public void invalidateAll() {
+		resolved.clear();
+		missed.clear();
+		ConversionCache.getInstance().clear();
+	}
+	
+	public int getSize() {
+		return resolved.size();
+	}
+}
@@ -42,22 +42,50 @@ public class CombinedExecutionContextImpl implements CombinedExecutionContext, F
 
 	private be.nabu.libs.services.api.ExecutionContext serviceContext;
 	private ExecutionContext glueContext;
+	// inherited from the contexts we are created from, see ServiceDeadline
+	private volatile long deadline;
 	
 	public CombinedExecutionContextImpl(ExecutionContext glueContext, be.nabu.libs.services.api.ExecutionContext serviceContext) {
-		this.glueContext = glueContext;
+		this.deadline = ServiceDeadline.earliest(ServiceDeadline.get(glueContext), ServiceDeadline.get(serviceContext));
+		this.glueContext = unwrap(glueContext);
 		this.serviceContext = serviceContext;
 	}
 	
 	public CombinedExecutionContextImpl(ExecutionContext glueContext, ExecutionContextProvider provider, Principal principal) {
-		this.glueContext = glueContext;
+		this.deadline = ServiceDeadline.get(glueContext);
+		this.glueContext = unwrap(glueContext);
 		this.serviceContext = provider.newExecutionContext(principal instanceof Token ? (Token) principal : null);
 	}
 	
 	public CombinedExecutionContextImpl(be.nabu.libs.services.api.ExecutionContext serviceContext, ExecutionEnvironment environment, LabelEvaluator labelEvaluator) {
+		this.deadline = ServiceDeadline.get(serviceContext);
 		this.serviceContext = serviceContext;
 		this.glueContext = new SimpleExecutionContext(environment, labelEvaluator, false);
 	}
 	
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * The deadline in System.nanoTime, it can only be brought forward, never postponed beyond the deadline of the caller.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = ServiceDeadline.earliest(this.deadline, deadline);
+	}
+	
+	// delegate to the actual glue context so nested calls don't build up an ever longer chain of wrappers
+	private static ExecutionContext unwrap(ExecutionContext glueContext) {
+		while (glueContext instanceof CombinedExecutionContextImpl) {
+			glueContext = ((CombinedExecutionContextImpl) glueContext).glueContext;
+		}
+		return glueContext;
+	}
+	
+	be.nabu.libs.services.api.ExecutionContext getServiceExecutionContext() {
+		return serviceContext;
+	}
+	
 	@Override
 	public SecurityContext getSecurityContext() {
 		return serviceContext.getSecurityContext();
@@ -0,0 +1,229 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Exposes complex content as a glue pipeline without copying it.
+ * Reads go straight to the content, writes and removals are kept in an overlay so the original content is never modified.
+ */
+public class ComplexContentMap extends AbstractMap<String, Object> {
+
+	private ComplexContent content;
+	private List<String> names;
+	private Set<String> nameSet;
+	// only created once the script actually changes something
+	private Map<String, Object> overrides;
+	private Set<String> removed;
+
+	public ComplexContentMap(ComplexContent content) {
+		this(content, getNames(content));
+	}
+
+	private ComplexContentMap(ComplexContent content, List<String> names) {
+		this(content, names, new HashSet<String>(names));
+	}
+
+	// the names are shared between instances so they are never modified
+	ComplexContentMap(ComplexContent content, List<String> names, Set<String> nameSet) {
+		this.content = content;
+		this.names = names;
+		this.nameSet = nameSet;
+	}
+
+	private static List<String> getNames(ComplexContent content) {
+		List<String> names = new ArrayList<String>();
+		for (Element<?> element : TypeUtils.getAllChildren(content.getType())) {
+			names.add(element.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Whether the map still reflects the original content exactly.
+	 */
+	public boolean isUnmodified() {
+		return (overrides == null || overrides.isEmpty()) && (removed == null || removed.isEmpty());
+	}
+
+	public ComplexContent getContent() {
+		return content;
+	}
+
+	private boolean isOriginal(Object key) {
+		return nameSet.contains(key) && (removed == null || !removed.contains(key)) && (overrides == null || !overrides.containsKey(key));
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (overrides != null && overrides.containsKey(key)) {
+			return overrides.get(key);
+		}
+		return isOriginal(key) ? content.get((String) key) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return (overrides != null && overrides.containsKey(key)) || isOriginal(key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		Object previous = get(key);
+		if (overrides == null) {
+			overrides = new HashMap<String, Object>();
+		}
+		overrides.put(key, value);
+		if (removed != null) {
+			removed.remove(key);
+		}
+		return previous;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		Object previous = get(key);
+		if (overrides != null) {
+			overrides.remove(key);
+		}
+		if (nameSet.contains(key)) {
+			if (removed == null) {
+				removed = new HashSet<String>();
+			}
+			removed.add((String) key);
+		}
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		if (overrides != null) {
+			overrides.clear();
+		}
+		if (removed == null) {
+			removed = new HashSet<String>();
+		}
+		removed.addAll(names);
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				final Iterator<String> originals = names.iterator();
+				final Iterator<Map.Entry<String, Object>> overridden = overrides == null ? null : new ArrayList<Map.Entry<String, Object>>(overrides.entrySet()).iterator();
+				return new Iterator<Map.Entry<String, Object>>() {
+					private String next;
+					private String last;
+					@Override
+					public boolean hasNext() {
+						while (next == null && originals.hasNext()) {
+							String name = originals.next();
+							if (isOriginal(name)) {
+								next = name;
+							}
+						}
+						return next != null || (overridden != null && overridden.hasNext());
+					}
+					@Override
+					public Map.Entry<String, Object> next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						if (next != null) {
+							last = next;
+							next = null;
+							return new OriginalEntry(last);
+						}
+						Map.Entry<String, Object> entry = overridden.next();
+						last = entry.getKey();
+						return new OriginalEntry(last);
+					}
+					@Override
+					public void remove() {
+						if (last == null) {
+							throw new IllegalStateException();
+						}
+						ComplexContentMap.this.remove(last);
+						last = null;
+					}
+				};
+			}
+			@Override
+			public int size() {
+				int size = overrides == null ? 0 : overrides.size();
+				for (String name : names) {
+					if (isOriginal(name)) {
+						size++;
+					}
+				}
+				return size;
+			}
+		};
+	}
+
+	// an entry that reads and writes through the map
+	private class OriginalEntry implements Map.Entry<String, Object> {
+		private String key;
+
+		public OriginalEntry(String key) {
+			this.key = key;
+		}
+		@Override
+		public String getKey() {
+			return key;
+		}
+		@Override
+		public Object getValue() {
+			return get(key);
+		}
+		@Override
+		public Object setValue(Object value) {
+			return put(key, value);
+		}
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) object;
+			Object value = getValue();
+			return key.equals(entry.getKey()) && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+		}
+		@Override
+		public int hashCode() {
+			Object value = getValue();
+			return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.mask.MaskedContent;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Remembers how content of one complex type is converted to another so repeated conversions don't walk the type hierarchy.
+ * Lookups are lock free. The cache holds on to the types it has seen, it is bounded in the amount of pairs and cleared whenever types are invalidated so redeployed types are not kept alive.
+ */
+public class ConversionCache {
+
+	public enum Strategy {
+		// the content can be used as is
+		IDENTITY,
+		// the content is an extension of the target type, it can be used as is
+		UPCAST,
+		// the content has to be masked as the target type
+		MASK,
+		// the content can be structurally cast to the target type
+		CAST
+	}
+
+	private static ConversionCache instance = new ConversionCache(10000);
+
+	public static ConversionCache getInstance() {
+		return instance;
+	}
+
+	private int maxSize;
+	// when masking the output we never structurally cast
+	private ConcurrentMap<TypePair, Strategy> maskStrategies = new ConcurrentHashMap<TypePair, Strategy>();
+	private ConcurrentMap<TypePair, Strategy> castStrategies = new ConcurrentHashMap<TypePair, Strategy>();
+
+	public ConversionCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Used to map returned values to the declared output: either the value fits or it is masked.
+	 */
+	public ComplexContent mask(ComplexContent content, ComplexType target) {
+		return getMaskStrategy(content.getType(), target) == Strategy.MASK ? new MaskedContent(content, target) : content;
+	}
+
+	public Strategy getMaskStrategy(ComplexType from, ComplexType to) {
+		TypePair key = new TypePair(from, to);
+		Strategy strategy = maskStrategies.get(key);
+		if (strategy == null) {
+			if (from.equals(to)) {
+				strategy = Strategy.IDENTITY;
+			}
+			else {
+				strategy = TypeUtils.getUpcastPath(from, to).isEmpty() ? Strategy.MASK : Strategy.UPCAST;
+			}
+			put(maskStrategies, key, strategy);
+		}
+		return strategy;
+	}
+
+	/**
+	 * Used to map arguments to a service input: a structural cast is attempted first and masking is the fallback.
+	 */
+	public ComplexContent cast(ComplexContent content, ComplexType target) {
+		TypePair key = new TypePair(content.getType(), target);
+		Strategy strategy = castStrategies.get(key);
+		if (strategy == null) {
+			ComplexContent cast = Structure.cast(content, target);
+			if (cast == null) {
+				strategy = Strategy.MASK;
+			}
+			else if (cast == content) {
+				strategy = Strategy.IDENTITY;
+			}
+			else {
+				strategy = Strategy.CAST;
+			}
+			put(castStrategies, key, strategy);
+			return cast == null ? new MaskedContent(content, target) : cast;
+		}
+		switch (strategy) {
+			case IDENTITY:
+			case UPCAST:
+				return content;
+			case MASK:
+				return new MaskedContent(content, target);
+			default:
+				ComplexContent cast = Structure.cast(content, target);
+				return cast == null ? new MaskedContent(content, target) : cast;
+		}
+	}
+
+	private void put(ConcurrentMap<TypePair, Strategy> strategies, TypePair key, Strategy strategy) {
+		// types are rarely redeployed, when we run full we simply start over
+		if (strategies.size() >= maxSize) {
+			strategies.clear();
+		}
+		strategies.put(key, strategy);
+	}
+
+	public void clear() {
+		maskStrategies.clear();
+		castStrategies.clear();
+	}
+
+	private static class TypePair {
+		private ComplexType from, to;
+		private int hashCode;
+
+		public TypePair(ComplexType from, ComplexType to) {
+			this.from = from;
+			this.to = to;
+			this.hashCode = 31 * System.identityHashCode(from) + System.identityHashCode(to);
+		}
+		@Override
+		public boolean equals(Object object) {
+			return object instanceof TypePair && ((TypePair) object).from == from && ((TypePair) object).to == to;
+		}
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import be.nabu.glue.utils.ScriptRuntime;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * The result of an asynchronous service call, it is only joined when it is first read.
+ * The type is known up front from the service interface so it can be passed around without blocking.
+ */
+public class FutureComplexContent implements ComplexContent {
+
+	public static final String PENDING = "pendingServiceResults";
+	
+	// set on the context of scripts that are guaranteed to join their pending results when they finish
+	public static final String JOINED = "joinsServiceResults";
+
+	private ComplexType type;
+	private Future<ServiceResult> future;
+	private volatile ComplexContent result;
+	private volatile boolean joined;
+	private Lock lock = new ReentrantLock();
+
+	private long deadline;
+	private String serviceId;
+	// the bulkhead permit held by the call, it is released once the call is done
+	private AtomicReference<ServiceBulkhead> bulkhead = new AtomicReference<ServiceBulkhead>();
+
+	public FutureComplexContent(ComplexType type, Future<ServiceResult> future) {
+		this(type, future, 0, null);
+	}
+	
+	/**
+	 * If the result is not available by the deadline (see ServiceDeadline), the call is cancelled.
+	 */
+	public FutureComplexContent(ComplexType type, Future<ServiceResult> future, long deadline, String serviceId) {
+		this.type = type;
+		this.future = future;
+		this.deadline = deadline;
+		this.serviceId = serviceId;
+	}
+
+	@Override
+	public ComplexType getType() {
+		return type;
+	}
+
+	@Override
+	public void set(String path, Object value) {
+		ComplexContent content = join();
+		if (content == null) {
+			throw new IllegalStateException("The service did not return any output");
+		}
+		content.set(path, value);
+	}
+
+	@Override
+	public Object get(String path) {
+		ComplexContent content = join();
+		return content == null ? null : content.get(path);
+	}
+
+	/**
+	 * The permit of the given bulkhead is released when the result is joined or the call is cancelled.
+	 */
+	void releaseWhenDone(ServiceBulkhead bulkhead) {
+		this.bulkhead.set(bulkhead);
+	}
+
+	private void release() {
+		ServiceBulkhead bulkhead = this.bulkhead.getAndSet(null);
+		if (bulkhead != null) {
+			bulkhead.release();
+		}
+	}
+
+	public boolean isDone() {
+		return joined || future.isDone();
+	}
+
+	public ComplexContent join() {
+		if (!joined) {
+			// a lock rather than a synchronized block so a virtual thread waiting for the result does not pin its carrier
+			lock.lock();
+			try {
+				if (!joined) {
+					ServiceResult serviceResult;
+					try {
+						serviceResult = ServiceDeadline.get(future, deadline, serviceId);
+					}
+					finally {
+						// if we were interrupted while waiting, the call is still running and keeps its permit
+						if (future.isDone()) {
+							release();
+						}
+					}
+					if (serviceResult.getException() != null) {
+						throw new RuntimeException(serviceResult.getException());
+					}
+					result = serviceResult.getOutput();
+					joined = true;
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			catch (ServiceDeadline.DeadlineExceededException e) {
+				throw new RuntimeException(e);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		return result;
+	}
+
+	public void cancel() {
+		future.cancel(true);
+		release();
+	}
+
+	/**
+	 * The context of the current script if it will join (or cancel) pending results when it finishes, otherwise null.
+	 * Results can only be deferred in such a context, anywhere else they would never be joined and their failures would be lost.
+	 */
+	static Map<String, Object> getJoiningContext() {
+		ScriptRuntime runtime = ScriptRuntime.getRuntime();
+		return runtime != null && Boolean.TRUE.equals(runtime.getContext().get(JOINED)) ? runtime.getContext() : null;
+	}
+
+	static void joinOnFinish(Map<String, Object> context) {
+		context.put(JOINED, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	static void register(Map<String, Object> context, FutureComplexContent content) {
+		synchronized(context) {
+			List<FutureComplexContent> pending = (List<FutureComplexContent>) context.get(PENDING);
+			if (pending == null) {
+				pending = new ArrayList<FutureComplexContent>();
+				context.put(PENDING, pending);
+			}
+			pending.add(content);
+		}
+	}
+
+	/**
+	 * Join (or cancel if the script failed) all the asynchronous results that were started within the given script context.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void finish(Map<String, Object> context, boolean cancel) throws ServiceException {
+		List<FutureComplexContent> pending;
+		synchronized(context) {
+			pending = (List<FutureComplexContent>) context.remove(PENDING);
+		}
+		if (pending != null) {
+			Throwable exception = null;
+			for (FutureComplexContent content : pending) {
+				// once something failed, there is no point in waiting for the rest
+				if (cancel || exception != null) {
+					content.cancel();
+				}
+				else {
+					try {
+						content.join();
+					}
+					catch (RuntimeException e) {
+						exception = e.getCause() == null ? e : e.getCause();
+					}
+				}
+			}
+			if (exception != null) {
+				throw new ServiceException(exception);
+			}
+		}
+	}
+}
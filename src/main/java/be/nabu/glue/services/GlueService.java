@@ -19,7 +19,9 @@ package be.nabu.glue.services;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,9 +36,7 @@ import be.nabu.glue.utils.ScriptUtils.ExecutorFilter;
 import be.nabu.libs.services.api.Service;
 import be.nabu.libs.services.api.ServiceInstance;
 import be.nabu.libs.services.api.ServiceInterface;
-import be.nabu.libs.types.DefinedTypeResolverFactory;
 import be.nabu.libs.types.api.ComplexType;
-import be.nabu.libs.types.api.DefinedType;
 import be.nabu.libs.types.api.DefinedTypeResolver;
 import be.nabu.libs.types.api.ModifiableComplexType;
 import be.nabu.libs.types.api.Type;
@@ -46,12 +46,33 @@ import be.nabu.libs.types.structure.SuperTypeProperty;
 
 public class GlueService implements Service {
 
-	private Script script;
+	// when present on the script, lazy series that are returned in list outputs are streamed to the caller instead of being resolved
+	public static final String STREAM_ANNOTATION = "stream";
+	
+	// when present on the script, results are cached for the given amount of milliseconds (forever if no value is given)
+	public static final String CACHE_ANNOTATION = "cache";
+	// the maximum amount of cached results, defaults to 1000
+	public static final String CACHE_SIZE_ANNOTATION = "cacheSize";
+	// when present on the script, the output depends on who is calling so results are cached per principal
+	public static final String SECURE_ANNOTATION = "secure";
+	// when present on the script, concurrent glue calls with the same input share a single execution
+	public static final String COALESCE_ANNOTATION = "coalesce";
+	// when present on the script, it must finish within the given amount of milliseconds (or sooner if the caller has an earlier deadline)
+	public static final String TIMEOUT_ANNOTATION = "timeout";
+
+	private volatile Script script;
 	private ExecutionEnvironment environment;
 	private LabelEvaluator labelEvaluator;
-	private ComplexType input, output;
-	private ServiceInterface implementedInterface;
+	private volatile ServiceInterface implementedInterface;
+	private AtomicReference<DerivedInterface> serviceInterface = new AtomicReference<DerivedInterface>();
+	private volatile ScriptCompilationCache compilationCache;
 	private DefinedTypeResolver typeResolver;
+	private boolean pooling, streaming, bridgeInput;
+	private long streamLimit;
+	private boolean metrics = GlueServiceMetrics.isEnabledByDefault();
+	private ServiceResultCache resultCache;
+	private long timeout;
+	private ThreadLocal<GlueServiceInvocation> invocations = new ThreadLocal<GlueServiceInvocation>();
 	private Logger logger = LoggerFactory.getLogger(getClass());
 
 	public GlueService(Script script, ExecutionEnvironment environment, LabelEvaluator labelEvaluator) {
@@ -67,49 +88,66 @@ public class GlueService implements Service {
 
 	@Override
 	public ServiceInterface getServiceInterface() {
-		try {
-			if (input == null) {
-				synchronized(this) {
-					if (input == null) {
-						input = GlueTypeUtils.toType(ScriptUtils.getFullName(script), ScriptUtils.getInputs(script), new StructureGenerator(), ScriptUtils.getRoot(script.getRepository()), getTypeResolver());
-						((ModifiableComplexType) input).setName("input");
-						if (implementedInterface != null) {
-							((ModifiableComplexType) input).setProperty(new ValueImpl<Type>(new SuperTypeProperty(), implementedInterface.getInputDefinition()));
-						}
-					}
-				}
+		return getGlueServiceInterface();
+	}
+	
+	GlueServiceInterface getGlueServiceInterface() {
+		DerivedInterface current = serviceInterface.get();
+		Script script = this.script;
+		ServiceInterface implementedInterface = this.implementedInterface;
+		while (current == null || current.script != script || current.implementedInterface != implementedInterface) {
+			ScriptCompilationCache compilationCache = this.compilationCache;
+			GlueServiceInterface built = compilationCache == null ? buildServiceInterface(script, implementedInterface) : compilationCache.getServiceInterface(this, script, implementedInterface);
+			// concurrent callers may both build it, only one will be published and everyone uses that one
+			if (serviceInterface.compareAndSet(current, new DerivedInterface(script, implementedInterface, built))) {
+				return serviceInterface.get().serviceInterface;
 			}
-			if (output == null) {
-				synchronized(this) {
-					if (output == null) {
-						final boolean returnAll = script.getRoot().getContext() != null && script.getRoot().getContext().getAnnotations() != null && script.getRoot().getContext().getAnnotations().containsKey("returnAll");
-						output = GlueTypeUtils.toType(ScriptUtils.getOutputs(script, new ExecutorFilter() {
-							@Override
-							public boolean accept(Executor executor) {
-								return returnAll || (executor.getContext() != null && executor.getContext().getAnnotations() != null && executor.getContext().getAnnotations().containsKey("return"));
-							}
-						}), new StructureGenerator(), ScriptUtils.getRoot(script.getRepository()), getTypeResolver());
-						((ModifiableComplexType) output).setName("output");
-						if (implementedInterface != null) {
-							((ModifiableComplexType) output).setProperty(new ValueImpl<Type>(new SuperTypeProperty(), implementedInterface.getOutputDefinition()));
-						}
-					}
-				}
+			current = serviceInterface.get();
+			script = this.script;
+			implementedInterface = this.implementedInterface;
+		}
+		return current.serviceInterface;
+	}
+	
+	GlueServiceInterface buildServiceInterface(Script script, ServiceInterface implementedInterface) {
+		try {
+			ComplexType input = GlueTypeUtils.toType(ScriptUtils.getFullName(script), ScriptUtils.getInputs(script), new StructureGenerator(), ScriptUtils.getRoot(script.getRepository()), getTypeResolver());
+			((ModifiableComplexType) input).setName("input");
+			if (implementedInterface != null) {
+				((ModifiableComplexType) input).setProperty(new ValueImpl<Type>(new SuperTypeProperty(), implementedInterface.getInputDefinition()));
 			}
-			return new ServiceInterface() {
-				@Override
-				public ComplexType getInputDefinition() {
-					return input;
-				}
+			final boolean returnAll = script.getRoot().getContext() != null && script.getRoot().getContext().getAnnotations() != null && script.getRoot().getContext().getAnnotations().containsKey("returnAll");
+			ComplexType output = GlueTypeUtils.toType(ScriptUtils.getOutputs(script, new ExecutorFilter() {
 				@Override
-				public ComplexType getOutputDefinition() {
-					return output;
+				public boolean accept(Executor executor) {
+					return returnAll || (executor.getContext() != null && executor.getContext().getAnnotations() != null && executor.getContext().getAnnotations().containsKey("return"));
 				}
-				@Override
-				public ServiceInterface getParent() {
-					return implementedInterface;
+			}), new StructureGenerator(), ScriptUtils.getRoot(script.getRepository()), getTypeResolver());
+			((ModifiableComplexType) output).setName("output");
+			if (implementedInterface != null) {
+				((ModifiableComplexType) output).setProperty(new ValueImpl<Type>(new SuperTypeProperty(), implementedInterface.getOutputDefinition()));
+			}
+			Map<String, String> annotations = script.getRoot().getContext() == null ? null : script.getRoot().getContext().getAnnotations();
+			boolean streaming = annotations != null && annotations.containsKey(STREAM_ANNOTATION);
+			ServiceResultCache resultCache = null;
+			if (annotations != null && annotations.containsKey(CACHE_ANNOTATION)) {
+				String timeToLive = annotations.get(CACHE_ANNOTATION);
+				String maxSize = annotations.get(CACHE_SIZE_ANNOTATION);
+				Long parsedTimeToLive = parseAnnotation(script, CACHE_ANNOTATION, timeToLive, 0);
+				Long parsedMaxSize = parseAnnotation(script, CACHE_SIZE_ANNOTATION, maxSize, 1000);
+				// rather not cache at all than cache for a duration that was not intended
+				if (parsedTimeToLive != null) {
+					resultCache = new ServiceResultCache(
+						parsedTimeToLive,
+						parsedMaxSize == null || parsedMaxSize < 1 ? 1000 : (int) Math.min(Integer.MAX_VALUE, parsedMaxSize),
+						annotations.containsKey(SECURE_ANNOTATION)
+					);
 				}
-			};
+			}
+			boolean coalescing = annotations != null && annotations.containsKey(COALESCE_ANNOTATION);
+			String timeout = annotations == null ? null : annotations.get(TIMEOUT_ANNOTATION);
+			Long parsedTimeout = parseAnnotation(script, TIMEOUT_ANNOTATION, timeout, 0);
+			return new GlueServiceInterface(script, implementedInterface, input, output, streaming, resultCache, coalescing, parsedTimeout == null ? 0 : parsedTimeout);
 		}
 		catch (ParseException e) {
 			throw new RuntimeException(e);
@@ -119,6 +157,24 @@ public class GlueService implements Service {
 		}
 	}
 
+	// a bad value should not make the whole service unusable, we warn and return null so the annotation is ignored
+	private Long parseAnnotation(Script script, String annotation, String value, long defaultValue) {
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException e) {
+			logger.warn("Ignoring invalid value '" + value + "' for annotation @" + annotation + " in script: " + ScriptUtils.getFullName(script));
+			return null;
+		}
+	}
+
+	public GlueServiceBindingPlan getBindingPlan() {
+		return getGlueServiceInterface().getBindingPlan();
+	}
+
 	@Override
 	public ServiceInstance newInstance() {
 		return new GlueServiceInstance(this);
@@ -128,6 +184,41 @@ public class GlueService implements Service {
 		return script;
 	}
 
+	/**
+	 * Swaps the script, the interface is rederived on next access.
+	 */
+	public void setScript(Script script) {
+		this.script = script;
+	}
+
+	/**
+	 * Forces the interface to be derived again on next access, e.g. because the content of the script was modified in place.
+	 */
+	public void reload() {
+		// the types the script refers to may have been redeployed or deployed for the first time since
+		if (getTypeResolver() instanceof CachingTypeResolver) {
+			((CachingTypeResolver) getTypeResolver()).invalidateAll();
+		}
+		// the shared interface would otherwise be reused because the content did not change
+		ScriptCompilationCache compilationCache = this.compilationCache;
+		if (compilationCache != null) {
+			compilationCache.invalidate(ScriptUtils.getFullName(script));
+		}
+		serviceInterface.set(null);
+	}
+
+	public ScriptCompilationCache getCompilationCache() {
+		return compilationCache;
+	}
+
+	/**
+	 * Share the derived interface with all other glue services that use the same cache and run the same script content.
+	 */
+	public void setCompilationCache(ScriptCompilationCache compilationCache) {
+		this.compilationCache = compilationCache;
+		serviceInterface.set(null);
+	}
+
 	public ExecutionEnvironment getEnvironment() {
 		return environment;
 	}
@@ -144,21 +235,106 @@ public class GlueService implements Service {
 		this.implementedInterface = implementedInterface;
 	}
 
+	public boolean isPooling() {
+		return pooling;
+	}
+
+	/**
+	 * Reuse the pipeline, formatter and post processors between runs on the same thread.
+	 * Only enable this for scripts that do not leak their pipeline, e.g. by returning lambdas that capture it.
+	 * Streaming runs are never pooled because a streamed series usually captures the pipeline.
+	 */
+	public void setPooling(boolean pooling) {
+		this.pooling = pooling;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public long getStreamLimit() {
+		return streamLimit;
+	}
+
+	/**
+	 * The maximum amount of items a streamed output may produce, the consumer gets an exception when the series has more. 0 means there is no limit.
+	 */
+	public void setStreamLimit(long streamLimit) {
+		this.streamLimit = streamLimit;
+	}
+
+	public boolean isBridgeInput() {
+		return bridgeInput;
+	}
+
+	/**
+	 * Use the input directly as the pipeline of the script instead of copying it into a new map.
+	 */
+	public void setBridgeInput(boolean bridgeInput) {
+		this.bridgeInput = bridgeInput;
+	}
+
+	public boolean isMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(boolean metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * The cache that is explicitly set takes precedence over the one configured on the script with @cache.
+	 */
+	public ServiceResultCache getResultCache() {
+		return getResultCache(getGlueServiceInterface());
+	}
+
+	ServiceResultCache getResultCache(GlueServiceInterface serviceInterface) {
+		return resultCache == null ? serviceInterface.getResultCache() : resultCache;
+	}
+
+	public void setResultCache(ServiceResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * The timeout that is explicitly set (in milliseconds) takes precedence over the one configured on the script with @timeout.
+	 */
+	public long getTimeout() {
+		return getTimeout(getGlueServiceInterface());
+	}
+
+	long getTimeout(GlueServiceInterface serviceInterface) {
+		return timeout > 0 ? timeout : serviceInterface.getTimeout();
+	}
+
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	GlueServiceInvocation getInvocation() {
+		// virtual threads are not reused so there is nothing to gain from pooling on them
+		if (VirtualThreadServiceRunner.isVirtual(Thread.currentThread())) {
+			return null;
+		}
+		GlueServiceInvocation invocation = invocations.get();
+		if (invocation == null) {
+			invocation = new GlueServiceInvocation();
+			invocations.set(invocation);
+		}
+		return invocation;
+	}
+
+	/**
+	 * Unless set explicitly, all glue services in the same repository share a caching resolver.
+	 */
 	public DefinedTypeResolver getTypeResolver() {
 		if (typeResolver == null) {
-			typeResolver = new DefinedTypeResolver() {
-				private DefinedTypeResolver centralTypeResolver = DefinedTypeResolverFactory.getInstance().getResolver(); 
-				@Override
-				
-				public DefinedType resolve(String id) {
-					DefinedType resolve = centralTypeResolver.resolve(id);
-					if (resolve == null) {
-						logger.warn("Could not resolve type '" + id + "', falling back to Object");
-						resolve = centralTypeResolver.resolve(Object.class.getName());
-					}
-					return resolve;
-				}
-			};
+			typeResolver = CachingTypeResolver.getInstance(ScriptUtils.getRoot(script.getRepository()));
 		}
 		return typeResolver;
 	}
@@ -166,5 +342,17 @@ public class GlueService implements Service {
 	public void setTypeResolver(DefinedTypeResolver typeResolver) {
 		this.typeResolver = typeResolver;
 	}
-	
+
+	// the interface together with what it was derived from, the interface itself may be shared with other services
+	private static class DerivedInterface {
+		private Script script;
+		private ServiceInterface implementedInterface;
+		private GlueServiceInterface serviceInterface;
+
+		public DerivedInterface(Script script, ServiceInterface implementedInterface, GlueServiceInterface serviceInterface) {
+			this.script = script;
+			this.implementedInterface = implementedInterface;
+			this.serviceInterface = serviceInterface;
+		}
+	}
 }
@@ -0,0 +1,325 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import be.nabu.glue.api.ExecutionContext;
+import be.nabu.glue.api.PostProcessor;
+import be.nabu.glue.core.impl.methods.v2.SeriesMethods;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.types.CollectionHandlerFactory;
+import be.nabu.libs.types.ComplexContentWrapperFactory;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.CollectionHandlerProvider;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.java.BeanType;
+import be.nabu.libs.types.properties.CollectionHandlerProviderProperty;
+
+/**
+ * The binding plan captures everything that can be derived from the input and output definitions of a glue service
+ * so we don't have to walk the type hierarchy on every execution.
+ */
+public class GlueServiceBindingPlan {
+
+	private static final ConcurrentMap<Class<?>, CollectionHandlerProvider<?, ?>> collectionHandlers = new ConcurrentHashMap<Class<?>, CollectionHandlerProvider<?, ?>>();
+
+	private ComplexType inputDefinition, outputDefinition;
+	private String [] inputNames;
+	private List<String> inputNameList;
+	private Set<String> inputNameSet;
+	private OutputBinding [] outputs;
+	private List<String> returnedVariables;
+	private PostProcessor resolver, streamingResolver;
+
+	GlueServiceBindingPlan(ComplexType inputDefinition, ComplexType outputDefinition) {
+		this.inputDefinition = inputDefinition;
+		this.outputDefinition = outputDefinition;
+		List<String> inputNames = new ArrayList<String>();
+		for (Element<?> element : TypeUtils.getAllChildren(inputDefinition)) {
+			inputNames.add(element.getName());
+		}
+		this.inputNames = inputNames.toArray(new String[inputNames.size()]);
+		this.inputNameList = Collections.unmodifiableList(inputNames);
+		this.inputNameSet = Collections.unmodifiableSet(new HashSet<String>(inputNames));
+		List<OutputBinding> outputs = new ArrayList<OutputBinding>();
+		List<String> returnedVariables = new ArrayList<String>();
+		for (Element<?> element : TypeUtils.getAllChildren(outputDefinition)) {
+			outputs.add(new OutputBinding(element));
+			returnedVariables.add(element.getName());
+		}
+		this.outputs = outputs.toArray(new OutputBinding[outputs.size()]);
+		this.returnedVariables = Collections.unmodifiableList(returnedVariables);
+		// the returned variables could be used outside of a glue context which makes lazy resolving sometimes impossible (depending on the type of series)
+		this.resolver = new SeriesResolver(this.returnedVariables);
+		// when streaming, lazy series in list outputs are handed to the caller as is
+		List<String> singleVariables = new ArrayList<String>();
+		for (OutputBinding binding : this.outputs) {
+			if (!binding.list) {
+				singleVariables.add(binding.name);
+			}
+		}
+		this.streamingResolver = new SeriesResolver(singleVariables);
+	}
+
+	public Map<String, Object> mapInput(ComplexContent input) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		mapInput(input, map);
+		return map;
+	}
+
+	void mapInput(ComplexContent input, Map<String, Object> map) {
+		if (input != null) {
+			// the input is usually an instance of our own definition but it may have been extended by the caller
+			if (input.getType() == inputDefinition) {
+				for (String name : inputNames) {
+					map.put(name, input.get(name));
+				}
+			}
+			else {
+				for (Element<?> element : TypeUtils.getAllChildren(input.getType())) {
+					map.put(element.getName(), input.get(element.getName()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Exposes the input as a pipeline without copying it, changes made by the script are kept in an overlay.
+	 */
+	public Map<String, Object> bridgeInput(ComplexContent input) {
+		if (input == null) {
+			return new HashMap<String, Object>();
+		}
+		return input.getType() == inputDefinition ? new ComplexContentMap(input, inputNameList, inputNameSet) : new ComplexContentMap(input);
+	}
+
+	public ComplexContent mapOutput(Map<String, Object> pipeline) {
+		return mapOutput(pipeline, false, 0);
+	}
+	
+	/**
+	 * When streaming, lazy series in list outputs are not resolved but exposed as an iterable that wraps and masks each item as it is pulled.
+	 * If the limit is larger than 0, the iterable fails once the series produces more items than that.
+	 * The iterable is handled by the StreamingOutputCollectionHandler, if the types library does not pick that up the series is resolved after all.
+	 * Note that the series is then evaluated after the script has finished so it should not depend on the runtime of the script.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public ComplexContent mapOutput(Map<String, Object> pipeline, boolean streaming, long limit) {
+		ComplexContent output = outputDefinition.newInstance();
+		for (OutputBinding binding : outputs) {
+			Object value = pipeline.get(binding.name);
+			if (streaming && binding.list && value instanceof Iterable && !(value instanceof Collection)) {
+				if (getCollectionHandler(StreamingOutput.class) != null) {
+					output.set(binding.name, new StreamingOutput(binding, (Iterable<?>) value, limit));
+					continue;
+				}
+				value = SeriesMethods.resolve((Iterable<?>) value);
+			}
+			// type mask if necessary (don't need to mask for object)
+			if (value != null && binding.complex) {
+				if (binding.list) {
+					CollectionHandlerProvider handler = getCollectionHandler(value.getClass());
+					if (handler == null) {
+						throw new RuntimeException("No collection handler found for: " + value.getClass());
+					}
+					output.set(binding.name, binding.mapList(handler.getAsCollection(value), value));
+					continue;
+				}
+				else {
+					value = binding.mask(value);
+				}
+			}
+			output.set(binding.name, value);
+		}
+		return output;
+	}
+
+	private static CollectionHandlerProvider<?, ?> getCollectionHandler(Class<?> clazz) {
+		CollectionHandlerProvider<?, ?> handler = collectionHandlers.get(clazz);
+		if (handler == null) {
+			handler = CollectionHandlerFactory.getInstance().getHandler().getHandler(clazz);
+			if (handler != null) {
+				collectionHandlers.putIfAbsent(clazz, handler);
+			}
+		}
+		return handler;
+	}
+
+	public ComplexType getInputDefinition() {
+		return inputDefinition;
+	}
+
+	public ComplexType getOutputDefinition() {
+		return outputDefinition;
+	}
+
+	public List<String> getReturnedVariables() {
+		return returnedVariables;
+	}
+
+	/**
+	 * A stateless post processor that resolves lazy series in the returned variables.
+	 */
+	public PostProcessor getResolver() {
+		return resolver;
+	}
+
+	public PostProcessor getResolver(boolean streaming) {
+		return streaming ? streamingResolver : resolver;
+	}
+
+	private static class OutputBinding {
+		private String name;
+		private ComplexType type;
+		private boolean list, complex;
+		// a custom collection handler for the element, if any
+		private CollectionHandlerProvider<?, ?> collectionHandler;
+
+		public OutputBinding(Element<?> element) {
+			this.name = element.getName();
+			boolean isObject = element.getType() instanceof BeanType && ((BeanType<?>) element.getType()).getBeanClass().equals(java.lang.Object.class);
+			this.complex = element.getType() instanceof ComplexType && !isObject;
+			this.type = this.complex ? (ComplexType) element.getType() : null;
+			this.list = element.getType().isList(element.getProperties());
+			this.collectionHandler = this.list ? ValueUtils.getValue(CollectionHandlerProviderProperty.getInstance(), element.getProperties()) : null;
+		}
+
+		public Object mask(Object value) {
+			if (!(value instanceof ComplexContent)) {
+				Object cast = ComplexContentWrapperFactory.getInstance().getWrapper().wrap(value);
+				if (cast == null) {
+					throw new RuntimeException("Could not wrap complex content around field: " + name + (list ? " (" + value + ")" : ""));
+				}
+				value = cast;
+			}
+			return ConversionCache.getInstance().mask((ComplexContent) value, type);
+		}
+
+		/**
+		 * Maps an entire list in one go, the original list is reused if no item needs to be wrapped or masked.
+		 * Otherwise the target collection is created once with the correct size and filled directly.
+		 */
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		public Object mapList(Collection<?> items, Object original) {
+			List<Object> mapped = null;
+			int index = 0;
+			for (Object item : items) {
+				Object result = item == null ? null : mask(item);
+				// the first item that is different, copy everything we skipped so far
+				if (mapped == null && result != item) {
+					mapped = new ArrayList<Object>(items.size());
+					Iterator<?> iterator = items.iterator();
+					for (int i = 0; i < index; i++) {
+						mapped.add(iterator.next());
+					}
+				}
+				if (mapped != null) {
+					mapped.add(result);
+				}
+				index++;
+			}
+			if (collectionHandler == null) {
+				if (mapped != null) {
+					return mapped;
+				}
+				else if (original instanceof List) {
+					return original;
+				}
+			}
+			CollectionHandlerProvider handler = collectionHandler == null ? getCollectionHandler(List.class) : collectionHandler;
+			Object target = handler.create(null, items.size());
+			index = 0;
+			for (Object item : mapped == null ? items : mapped) {
+				handler.set(target, index++, item);
+			}
+			return target;
+		}
+
+	}
+
+	private static class SeriesResolver implements PostProcessor {
+		private List<String> variables;
+
+		public SeriesResolver(List<String> variables) {
+			this.variables = variables;
+		}
+
+		@Override
+		public void postProcess(ExecutionContext context) {
+			// only resolve the returned values
+			// otherwise we might use infinite series for internal purposes (e.g. index generators) that get resolved afterwards though they are not necessary
+			// if they support outputted variables, the part that is necessary will be resolved by resolving the actual return parameters
+			for (String key : variables) {
+				if (context.getPipeline().get(key) instanceof Iterable && !(context.getPipeline().get(key) instanceof Collection)) {
+					context.getPipeline().put(key, SeriesMethods.resolve((Iterable<?>) context.getPipeline().get(key)));
+				}	
+			}
+		}
+	}
+
+	// pulls one item at a time from the original series, nothing is buffered
+	static class StreamingOutput implements Iterable<Object> {
+		private OutputBinding binding;
+		private Iterable<?> series;
+		private long limit;
+
+		public StreamingOutput(OutputBinding binding, Iterable<?> series, long limit) {
+			this.binding = binding;
+			this.series = series;
+			this.limit = limit;
+		}
+
+		@Override
+		public Iterator<Object> iterator() {
+			final Iterator<?> iterator = series.iterator();
+			return new Iterator<Object>() {
+				private long count;
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+				@Override
+				public Object next() {
+					if (limit > 0 && count >= limit && iterator.hasNext()) {
+						throw new IllegalStateException("The streamed output '" + binding.name + "' has more than " + limit + " items");
+					}
+					Object item = iterator.next();
+					count++;
+					return item == null || !binding.complex ? item : binding.mask(item);
+				}
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+}
@@ -17,8 +17,12 @@
 
 package be.nabu.glue.services;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import be.nabu.glue.api.Executor;
 import be.nabu.glue.api.OutputFormatter;
@@ -26,6 +30,7 @@ import be.nabu.glue.api.Script;
 import be.nabu.glue.api.runs.GlueValidation;
 import be.nabu.glue.core.impl.methods.v2.ScriptMethods;
 import be.nabu.glue.utils.ScriptUtils;
+import be.nabu.libs.metrics.api.MetricInstance;
 import be.nabu.libs.services.api.DefinedService;
 import be.nabu.libs.services.api.ServiceInstance;
 import be.nabu.libs.services.api.ServiceInterface;
@@ -35,16 +40,61 @@ public class GlueServiceFormatter implements OutputFormatter {
 
 	private ServiceRuntimeTracker tracker;
 	private OutputFormatter parent;
+	private MetricInstance metrics;
+	// the start times of the steps that are currently running, steps can be nested
+	private long [] started = new long[8];
+	private int depth;
+	private long lastDuration;
+	private StepCache steps;
+	private long deadline;
 
 	public GlueServiceFormatter(ServiceRuntimeTracker tracker, OutputFormatter parent) {
 		this.tracker = tracker;
 		this.parent = parent;
 	}
 	
+	// only used when the formatter is pooled
+	void reset(ServiceRuntimeTracker tracker, OutputFormatter parent) {
+		this.tracker = tracker;
+		this.parent = parent;
+		this.metrics = null;
+		this.steps = null;
+		this.deadline = 0;
+		this.depth = 0;
+		this.lastDuration = 0;
+	}
+	
+	public MetricInstance getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(MetricInstance metrics) {
+		this.metrics = metrics;
+	}
+
+	public StepCache getSteps() {
+		return steps;
+	}
+
+	public void setSteps(StepCache steps) {
+		this.steps = steps;
+	}
+	
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Once the deadline (in System.nanoTime) expires, the script is stopped before it runs the next executor.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+	
 	@Override
 	public void start(Script script) {
 		if (tracker != null) {
-			tracker.start(new ScriptService(script));
+			tracker.start(getScriptService(script));
 		}
 		if (parent != null) {
 			parent.start(script);
@@ -53,10 +103,21 @@ public class GlueServiceFormatter implements OutputFormatter {
 
 	@Override
 	public void before(Executor executor) {
-		if (tracker != null) {
-			String string = executor.getContext().getAnnotations().get("step");
-			if (string != null) {
-				tracker.before(new ExecutorStep(executor, string));
+		if (ServiceDeadline.isExpired(deadline)) {
+			// the formatter can not throw checked exceptions, the service unwraps it again
+			throw new RuntimeException(new ServiceDeadline.DeadlineExceededException(steps == null ? "glue script" : ScriptUtils.getFullName(steps.script)));
+		}
+		if (tracker != null || metrics != null) {
+			ExecutorStep step = getStep(executor);
+			if (step != null) {
+				if (depth == started.length) {
+					started = Arrays.copyOf(started, depth * 2);
+				}
+				if (tracker != null) {
+					tracker.before(step);
+				}
+				// take the timestamp after notifying the tracker so the step timing does not include the tracker
+				started[depth++] = System.nanoTime();
 			}
 		}
 		if (parent != null) {
@@ -66,16 +127,44 @@ public class GlueServiceFormatter implements OutputFormatter {
 
 	@Override
 	public void after(Executor executor) {
-		if (tracker != null) {
-			String string = executor.getContext().getAnnotations().get("step");
-			if (string != null) {
-				tracker.before(new ExecutorStep(executor, string));
+		if (tracker != null || metrics != null) {
+			ExecutorStep step = getStep(executor);
+			if (step != null) {
+				long stopped = System.nanoTime();
+				if (depth > 0) {
+					lastDuration = stopped - started[--depth];
+					if (metrics != null) {
+						metrics.duration(step.getMetricId(), lastDuration, TimeUnit.NANOSECONDS);
+					}
+				}
+				if (tracker != null) {
+					tracker.after(step);
+				}
 			}
 		}
 		if (parent != null) {
 			parent.after(executor);
 		}
 	}
+	
+	/**
+	 * The duration in nanoseconds of the last step that was completed, this can be used by trackers in their after() to get accurate timing.
+	 */
+	public long getLastDuration() {
+		return lastDuration;
+	}
+	
+	private ExecutorStep getStep(Executor executor) {
+		if (steps != null) {
+			return steps.getStep(executor);
+		}
+		String name = executor.getContext().getAnnotations().get("step");
+		return name == null ? null : new ExecutorStep(executor, name);
+	}
+	
+	private ScriptService getScriptService(Script script) {
+		return steps != null && steps.script == script ? steps.service : new ScriptService(script);
+	}
 
 	@Override
 	public void validated(GlueValidation... validations) {
@@ -96,10 +185,10 @@ public class GlueServiceFormatter implements OutputFormatter {
 	public void end(Script script, Date started, Date stopped, Exception exception) {
 		if (tracker != null) {
 			if (exception != null) {
-				tracker.error(new ScriptService(script), exception);
+				tracker.error(getScriptService(script), exception);
 			}
 			else {
-				tracker.stop(new ScriptService(script));
+				tracker.stop(getScriptService(script));
 			}
 		}
 		if (parent != null) {
@@ -114,12 +203,19 @@ public class GlueServiceFormatter implements OutputFormatter {
 	
 	public static class ExecutorStep {
 		private Executor executor;
-		private String name;
+		private String name, metricId;
 
 		public ExecutorStep(Executor executor, String name) {
 			this.executor = executor;
 			this.name = name;
 		}
+		
+		String getMetricId() {
+			if (metricId == null) {
+				metricId = GlueServiceMetrics.STEP + name;
+			}
+			return metricId;
+		}
 
 		public Executor getExecutor() {
 			return executor;
@@ -135,6 +231,7 @@ public class GlueServiceFormatter implements OutputFormatter {
 
 		public void setName(String name) {
 			this.name = name;
+			this.metricId = null;
 		}
 		@Override
 		public boolean equals(Object object) {
@@ -178,4 +275,33 @@ public class GlueServiceFormatter implements OutputFormatter {
 			return script.hashCode();
 		}
 	}
+
+	/**
+	 * The step identities of a single script, these are calculated once per executor and shared by all runs of that script.
+	 */
+	public static class StepCache {
+		private static final ExecutorStep NO_STEP = new ExecutorStep(null, null);
+		
+		private Script script;
+		private ScriptService service;
+		private ConcurrentMap<Executor, ExecutorStep> steps = new ConcurrentHashMap<Executor, ExecutorStep>();
+		
+		public StepCache(Script script) {
+			this.script = script;
+			this.service = new ScriptService(script);
+		}
+		
+		public ExecutorStep getStep(Executor executor) {
+			ExecutorStep step = steps.get(executor);
+			if (step == null) {
+				String name = executor.getContext() == null || executor.getContext().getAnnotations() == null ? null : executor.getContext().getAnnotations().get("step");
+				step = name == null ? NO_STEP : new ExecutorStep(executor, name);
+				ExecutorStep existing = steps.putIfAbsent(executor, step);
+				if (existing != null) {
+					step = existing;
+				}
+			}
+			return step == NO_STEP ? null : step;
+		}
+	}
 }
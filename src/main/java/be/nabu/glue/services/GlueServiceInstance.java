@@ -18,29 +18,23 @@
 package be.nabu.glue.services;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import be.nabu.glue.api.OutputFormatter;
 import be.nabu.glue.api.PostProcessor;
-import be.nabu.glue.core.impl.methods.v2.SeriesMethods;
 import be.nabu.glue.utils.ScriptRuntime;
 import be.nabu.libs.evaluator.impl.VariableOperation;
+import be.nabu.libs.metrics.api.MetricInstance;
 import be.nabu.libs.services.ServiceRuntime;
 import be.nabu.libs.services.api.ExecutionContext;
 import be.nabu.libs.services.api.Service;
 import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.services.api.ServiceInstance;
-import be.nabu.libs.types.CollectionHandlerFactory;
-import be.nabu.libs.types.ComplexContentWrapperFactory;
-import be.nabu.libs.types.TypeUtils;
-import be.nabu.libs.types.api.CollectionHandlerProvider;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
 import be.nabu.libs.types.api.ComplexContent;
-import be.nabu.libs.types.api.ComplexType;
-import be.nabu.libs.types.api.Element;
-import be.nabu.libs.types.java.BeanType;
-import be.nabu.libs.types.mask.MaskedContent;
 
 public class GlueServiceInstance implements ServiceInstance {
 
@@ -50,106 +44,147 @@ public class GlueServiceInstance implements ServiceInstance {
 		this.service = service;
 	}
 	
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Override
 	public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
-		Map<String, Object> map = new HashMap<String, Object>();
-		if (input != null) {
-			// map input
-			for (Element<?> element : TypeUtils.getAllChildren(input.getType())) {
-				map.put(element.getName(), input.get(element.getName()));
-			}
-		}
+		// resolve the interface once so the script and the plan are guaranteed to belong together
+		GlueServiceInterface serviceInterface = service.getGlueServiceInterface();
+		final GlueServiceBindingPlan plan = serviceInterface.getBindingPlan();
 		ScriptRuntime currentRuntime = ScriptRuntime.getRuntime();
-		ScriptRuntime runtime = new ScriptRuntime(service.getScript(), new CombinedExecutionContextImpl(executionContext, service.getEnvironment(), service.getLabelEvaluator()), map);
+		ServiceRuntimeTracker tracker = ServiceRuntime.getRuntime().getRuntimeTracker();
+		OutputFormatter parentFormatter = currentRuntime == null ? null : currentRuntime.getFormatter();
 		
-		runtime.setFormatter(new GlueServiceFormatter(ServiceRuntime.getRuntime().getRuntimeTracker(), currentRuntime == null ? null : currentRuntime.getFormatter()));
+		boolean streaming = service.isStreaming() || serviceInterface.isStreaming();
+		MetricInstance metrics = service.isMetrics() ? GlueServiceMetrics.getInstance(executionContext, serviceInterface.getName()) : null;
+		long started = metrics == null ? 0 : System.nanoTime();
+		boolean failed = true;
 		
-		// add a post processor to automatically resolve iterables
-		// the returned variables could be used outside of a glue context which makes lazy resolving sometimes impossible (depending on the type of series)
-		List<PostProcessor> postProcessors = new ArrayList<PostProcessor>();
-		
-		// only resolve the returned values
-		// otherwise we might use infinite series for internal purposes (e.g. index generators) that get resolved afterwards though they are not necessary
-		// if they support outputted variables, the part that is necessary will be resolved by resolving the actual return parameters
-		final List<String> returnedVariables = new ArrayList<String>();
-		for (Element<?> child : TypeUtils.getAllChildren(service.getServiceInterface().getOutputDefinition())) {
-			returnedVariables.add(child.getName());
+		// lazy outputs can not be shared so nothing is cached when streaming, warmup replays leave the cache alone
+		ServiceResultCache resultCache = streaming || GlueServiceWarmup.isWarmingUp() ? null : service.getResultCache(serviceInterface);
+		Object cacheKey = null;
+		if (resultCache != null) {
+			cacheKey = resultCache.newKey(input, executionContext == null || executionContext.getSecurityContext() == null ? null : executionContext.getSecurityContext().getToken());
+			ComplexContent cached = cacheKey == null ? null : resultCache.get(cacheKey, metrics);
+			if (cached != null) {
+				GlueServiceMetrics.increment(metrics, GlueServiceMetrics.INVOCATIONS);
+				GlueServiceMetrics.duration(metrics, GlueServiceMetrics.DURATION, started);
+				return cached;
+			}
 		}
 		
-		// lists should have their own reference?
-		postProcessors.add(new PostProcessor() {
-			@Override
-			public void postProcess(be.nabu.glue.api.ExecutionContext context) {
-				for (String key : returnedVariables) {
-					if (context.getPipeline().get(key) instanceof Iterable && !(context.getPipeline().get(key) instanceof Collection)) {
-						context.getPipeline().put(key, SeriesMethods.resolve((Iterable<?>) context.getPipeline().get(key)));
-					}	
+		// when pooling, reuse the per-thread state unless it is already in use further up the stack
+		// a streamed series is consumed after we return and usually captures the pipeline, so it can not be reused
+		GlueServiceInvocation invocation = service.isPooling() && !streaming ? service.getInvocation() : null;
+		if (invocation != null && !invocation.acquire(tracker, parentFormatter, plan.getResolver(streaming))) {
+			invocation = null;
+		}
+		// glue services are limited here rather than at the calling side so it applies no matter how they are called
+		ServiceBulkhead bulkhead = ServiceBulkhead.get(serviceInterface.getName());
+		boolean acquired = false;
+		try {
+			// the deadline of the caller applies, the script can only bring it forward
+			long deadline = ServiceDeadline.get(executionContext);
+			long timeout = service.getTimeout(serviceInterface);
+			if (timeout > 0) {
+				deadline = ServiceDeadline.earliest(deadline, ServiceDeadline.after(timeout, TimeUnit.MILLISECONDS));
+			}
+			ServiceDeadline.check(deadline, serviceInterface.getName());
+			if (bulkhead != null) {
+				bulkhead.acquire(serviceInterface.getName(), metrics, deadline);
+				acquired = true;
+			}
+			
+			// the time spent waiting for the bulkhead is recorded separately
+			long bindingStarted = metrics == null ? 0 : System.nanoTime();
+			Map<String, Object> map;
+			List<PostProcessor> postProcessors;
+			GlueServiceFormatter formatter;
+			if (service.isBridgeInput()) {
+				map = plan.bridgeInput(input);
+			}
+			else if (invocation != null) {
+				map = invocation.getPipeline();
+				plan.mapInput(input, map);
+			}
+			else {
+				map = new HashMap<String, Object>();
+				plan.mapInput(input, map);
+			}
+			if (invocation != null) {
+				formatter = invocation.getFormatter();
+				postProcessors = invocation.getPostProcessors();
+			}
+			else {
+				formatter = new GlueServiceFormatter(tracker, parentFormatter);
+				// add a post processor to automatically resolve iterables
+				// lists should have their own reference?
+				postProcessors = new ArrayList<PostProcessor>();
+				postProcessors.add(plan.getResolver(streaming));
+			}
+			formatter.setMetrics(metrics);
+			formatter.setSteps(serviceInterface.getSteps());
+			formatter.setDeadline(deadline);
+			CombinedExecutionContextImpl combinedContext = new CombinedExecutionContextImpl(executionContext, service.getEnvironment(), service.getLabelEvaluator());
+			combinedContext.setDeadline(deadline);
+			// the interface may have been derived from an identical script of another service, we always run our own
+			ScriptRuntime runtime = new ScriptRuntime(service.getScript(), combinedContext, map);
+			// we finish the pending results below so glue calls made by this script can be deferred
+			FutureComplexContent.joinOnFinish(runtime.getContext());
+			runtime.setFormatter(formatter);
+			runtime.setPostProcessors(postProcessors);
+			GlueServiceMetrics.duration(metrics, GlueServiceMetrics.INPUT_BINDING, bindingStarted);
+			
+			long executionStarted = metrics == null ? 0 : System.nanoTime();
+			VariableOperation.registerRoot();
+			try {
+				runtime.run();
+			}
+			catch (RuntimeException e) {
+				ServiceDeadline.DeadlineExceededException expired = ServiceDeadline.find(e);
+				if (expired == null) {
+					throw e;
 				}
+				// don't leave asynchronous calls running after we gave up
+				FutureComplexContent.finish(runtime.getContext(), true);
+				throw expired;
 			}
-		});
-		runtime.setPostProcessors(postProcessors);
-		
-		VariableOperation.registerRoot();
-		try {
-			runtime.run();
+			finally {
+				VariableOperation.unregisterRoot();
+			}
+	
+			// any asynchronous service calls that were never read are joined (or cancelled) before we map the output
+			FutureComplexContent.finish(runtime.getContext(), runtime.getException() != null);
+	
+			if (runtime.getException() != null) {
+				ServiceDeadline.DeadlineExceededException expired = ServiceDeadline.find(runtime.getException());
+				throw expired != null ? expired : new ServiceException(runtime.getException());
+			}
+			GlueServiceMetrics.duration(metrics, GlueServiceMetrics.EXECUTION, executionStarted);
+			
+			// map output back
+			long mappingStarted = metrics == null ? 0 : System.nanoTime();
+			ComplexContent output = plan.mapOutput(runtime.getExecutionContext().getPipeline(), streaming, service.getStreamLimit());
+			GlueServiceMetrics.duration(metrics, GlueServiceMetrics.OUTPUT_MAPPING, mappingStarted);
+			if (cacheKey != null) {
+				resultCache.put(cacheKey, output, metrics);
+			}
+			failed = false;
+			return output;
 		}
 		finally {
-			VariableOperation.unregisterRoot();
-		}
-		
-		if (runtime.getException() != null) {
-			throw new ServiceException(runtime.getException());
-		}
-		// map output back
-		ComplexContent output = service.getServiceInterface().getOutputDefinition().newInstance();
-		for (Element<?> element : TypeUtils.getAllChildren(output.getType())) {
-			Object value = runtime.getExecutionContext().getPipeline().get(element.getName());
-			boolean isObject = element.getType() instanceof BeanType && ((BeanType) element.getType()).getBeanClass().equals(java.lang.Object.class);
-			// type mask if necessary (don't need to mask for object)
-			if (value != null && element.getType() instanceof ComplexType && !isObject) {
-				if (element.getType().isList(element.getProperties())) {
-					CollectionHandlerProvider handler = CollectionHandlerFactory.getInstance().getHandler().getHandler(value.getClass());
-					if (handler == null) {
-						throw new RuntimeException("No collection handler found for: " + value.getClass());
-					}
-					int index = 0;
-					for (Object item : handler.getAsCollection(value)) {
-						if (item != null) {
-							if (!(item instanceof ComplexContent)) {
-								Object cast = ComplexContentWrapperFactory.getInstance().getWrapper().wrap(item);
-								if (cast == null) {
-									throw new RuntimeException("Could not wrap complex content around field: " + element.getName() + " (" + item + ")");
-								}
-								else {
-									item = cast;
-								}
-							}
-							ComplexType type = ((ComplexContent) item).getType();
-							if (!type.equals(element.getType()) && TypeUtils.getUpcastPath(type, element.getType()).isEmpty()) {
-								item = new MaskedContent((ComplexContent) item, (ComplexType) element.getType());
-							}
-						}
-						output.set(element.getName() + "[" + index++ + "]", item);
-					}
-					continue;
-				}
-				else {
-					if (!(value instanceof ComplexContent)) {
-						value = ComplexContentWrapperFactory.getInstance().getWrapper().wrap(value);
-						if (value == null) {
-							throw new RuntimeException("Could not wrap complex content around field: " + element.getName());
-						}
-					}
-					ComplexType type = ((ComplexContent) value).getType();
-					if (!type.equals(element.getType()) && TypeUtils.getUpcastPath(type, element.getType()).isEmpty()) {
-						value = new MaskedContent((ComplexContent) value, (ComplexType) element.getType());
-					}
+			if (acquired) {
+				bulkhead.release();
+			}
+			if (invocation != null) {
+				invocation.release();
+			}
+			if (metrics != null) {
+				GlueServiceMetrics.increment(metrics, GlueServiceMetrics.INVOCATIONS);
+				if (failed) {
+					GlueServiceMetrics.increment(metrics, GlueServiceMetrics.ERRORS);
 				}
+				GlueServiceMetrics.duration(metrics, GlueServiceMetrics.DURATION, started);
 			}
-			output.set(element.getName(), value);
 		}
-		return output;
 	}
 
 	@Override
@@ -0,0 +1,104 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import be.nabu.glue.api.Script;
+import be.nabu.glue.utils.ScriptUtils;
+import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * The derived interface of a glue service, it is never modified once it is created so it can be shared freely between threads.
+ */
+public final class GlueServiceInterface implements ServiceInterface {
+
+	private final Script script;
+	private final ServiceInterface parent;
+	private final ComplexType input, output;
+	private final GlueServiceBindingPlan bindingPlan;
+	private final String name;
+	private final GlueServiceFormatter.StepCache steps;
+	private final boolean streaming, coalescing;
+	private final ServiceResultCache resultCache;
+	private final long timeout;
+
+	GlueServiceInterface(Script script, ServiceInterface parent, ComplexType input, ComplexType output, boolean streaming, ServiceResultCache resultCache, boolean coalescing, long timeout) {
+		this.script = script;
+		this.parent = parent;
+		this.input = input;
+		this.output = output;
+		this.bindingPlan = new GlueServiceBindingPlan(input, output);
+		this.name = ScriptUtils.getFullName(script);
+		this.steps = new GlueServiceFormatter.StepCache(script);
+		this.streaming = streaming;
+		this.resultCache = resultCache;
+		this.coalescing = coalescing;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public ComplexType getInputDefinition() {
+		return input;
+	}
+
+	@Override
+	public ComplexType getOutputDefinition() {
+		return output;
+	}
+
+	@Override
+	public ServiceInterface getParent() {
+		return parent;
+	}
+
+	public GlueServiceBindingPlan getBindingPlan() {
+		return bindingPlan;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	// whether the script itself asks for streaming output
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	// the cache configured on the script, it lives as long as the interface so a changed script never serves stale results
+	public ServiceResultCache getResultCache() {
+		return resultCache;
+	}
+
+	// whether the script asks for concurrent identical calls to be coalesced
+	public boolean isCoalescing() {
+		return coalescing;
+	}
+
+	// the timeout in milliseconds configured on the script, 0 if there is none
+	public long getTimeout() {
+		return timeout;
+	}
+
+	GlueServiceFormatter.StepCache getSteps() {
+		return steps;
+	}
+
+	Script getScript() {
+		return script;
+	}
+}
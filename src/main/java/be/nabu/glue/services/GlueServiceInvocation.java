@@ -0,0 +1,71 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.glue.api.OutputFormatter;
+import be.nabu.glue.api.PostProcessor;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
+
+/**
+ * The reusable per-invocation state of a glue service.
+ * An invocation is bound to a single thread and can only be reused once it has been released, at which point everything it holds is cleared.
+ */
+class GlueServiceInvocation {
+
+	private Map<String, Object> pipeline = new HashMap<String, Object>();
+	private GlueServiceFormatter formatter = new GlueServiceFormatter(null, null);
+	private List<PostProcessor> postProcessors = new ArrayList<PostProcessor>();
+	private boolean inUse;
+
+	/**
+	 * Returns false if the invocation is already in use (e.g. the service recursively calls itself) or if it was not properly cleared.
+	 */
+	boolean acquire(ServiceRuntimeTracker tracker, OutputFormatter parent, PostProcessor postProcessor) {
+		if (inUse || !pipeline.isEmpty() || !postProcessors.isEmpty()) {
+			return false;
+		}
+		inUse = true;
+		formatter.reset(tracker, parent);
+		postProcessors.add(postProcessor);
+		return true;
+	}
+
+	void release() {
+		pipeline.clear();
+		postProcessors.clear();
+		formatter.reset(null, null);
+		inUse = false;
+	}
+
+	Map<String, Object> getPipeline() {
+		return pipeline;
+	}
+
+	GlueServiceFormatter getFormatter() {
+		return formatter;
+	}
+
+	List<PostProcessor> getPostProcessors() {
+		return postProcessors;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.libs.metrics.api.MetricInstance;
+import be.nabu.libs.services.api.ExecutionContext;
+
+/**
+ * The metrics that are recorded by glue services and by the service calls made from glue.
+ * Metrics can be switched off globally with the system property "glue.services.metrics=false" or per service/provider.
+ */
+public class GlueServiceMetrics {
+
+	// recorded on the metric instance of the glue service itself
+	public static final String INVOCATIONS = "invocations";
+	public static final String ERRORS = "errors";
+	public static final String DURATION = "duration";
+	public static final String INPUT_BINDING = "inputBinding";
+	public static final String EXECUTION = "execution";
+	public static final String OUTPUT_MAPPING = "outputMapping";
+	// prefixed to the name of a @step
+	public static final String STEP = "step:";
+
+	// recorded on the metric instance of the service whose results are cached
+	public static final String CACHE_HITS = "cacheHits";
+	public static final String CACHE_MISSES = "cacheMisses";
+	public static final String CACHE_EVICTIONS = "cacheEvictions";
+
+	// recorded on the metric instance of a service that is protected by a bulkhead
+	public static final String BULKHEAD_WAIT = "bulkheadWait";
+	public static final String BULKHEAD_REJECTED = "bulkheadRejected";
+
+	// recorded on the metric instance of the service that is called from glue
+	public static final String CALLS = "glueCalls";
+	public static final String CALL_BINDING = "glueCallBinding";
+	public static final String CALL_ERRORS = "glueCallErrors";
+	public static final String CALL_DURATION = "glueCallDuration";
+	// calls that did not run themselves but shared the result of an identical call that was already in flight
+	public static final String COALESCED_CALLS = "glueCoalescedCalls";
+	// recorded on the metric instance of the batch service
+	public static final String BATCHES = "glueBatches";
+
+	private static final boolean ENABLED = !"false".equals(System.getProperty("glue.services.metrics"));
+
+	public static boolean isEnabledByDefault() {
+		return ENABLED;
+	}
+
+	public static MetricInstance getInstance(ExecutionContext context, String id) {
+		return context == null || id == null ? null : context.getMetricInstance(id);
+	}
+
+	public static void duration(MetricInstance metrics, String id, long startedNanos) {
+		if (metrics != null) {
+			metrics.duration(id, System.nanoTime() - startedNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	public static void increment(MetricInstance metrics, String id) {
+		if (metrics != null) {
+			metrics.increment(id, 1);
+		}
+	}
+}
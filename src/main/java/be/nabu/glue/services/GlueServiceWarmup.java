@@ -0,0 +1,228 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.DefinedServiceLister;
+import be.nabu.libs.services.api.ExecutionContextProvider;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * Does the work that would otherwise be done by the first call to each service: deriving the interfaces, resolving the types, building the binding plans and input binders.
+ * The services are warmed up in parallel. Optionally sample inputs can be replayed, note that these are actual executions so only use inputs that have no side effects.
+ * Replays bypass the result caches so they neither fill them nor are answered by them, nested calls that run on other threads (asynchronous or parallel) are not recognized as a replay.
+ * Apart from that they behave like any other call: they run as an anonymous principal, take bulkhead permits and are counted in the metrics.
+ */
+public class GlueServiceWarmup {
+
+	// whether the current thread is replaying a sample
+	private static ThreadLocal<Boolean> warmingUp = new ThreadLocal<Boolean>();
+	
+	/**
+	 * Whether the current thread is replaying a warmup sample, the result caches are not used for these calls.
+	 */
+	public static boolean isWarmingUp() {
+		return warmingUp.get() != null;
+	}
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private DefinedServiceLister lister;
+	private ServiceMethodProvider methodProvider;
+	private ExecutionContextProvider contextProvider;
+	// samples can be added while a warmup is running
+	private ConcurrentMap<String, List<ComplexContent>> samples = new ConcurrentHashMap<String, List<ComplexContent>>();
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	
+	public GlueServiceWarmup(DefinedServiceLister lister) {
+		this(lister, null);
+	}
+	
+	/**
+	 * If a method provider is given, its resolution cache and input binders are primed as well.
+	 */
+	public GlueServiceWarmup(DefinedServiceLister lister, ServiceMethodProvider methodProvider) {
+		this.lister = lister;
+		this.methodProvider = methodProvider;
+	}
+	
+	/**
+	 * The samples are replayed through the service after it is warmed up, the context provider is used to create an anonymous execution context for them.
+	 */
+	public void addSample(String serviceId, ComplexContent input) {
+		List<ComplexContent> inputs = samples.get(serviceId);
+		if (inputs == null) {
+			inputs = new CopyOnWriteArrayList<ComplexContent>();
+			List<ComplexContent> existing = samples.putIfAbsent(serviceId, inputs);
+			if (existing != null) {
+				inputs = existing;
+			}
+		}
+		inputs.add(input);
+	}
+	
+	public void setContextProvider(ExecutionContextProvider contextProvider) {
+		this.contextProvider = contextProvider;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Warms up all the listed services and returns how long each one took, in the order of the lister.
+	 */
+	public List<WarmupResult> warmup() {
+		List<DefinedService> services = new ArrayList<DefinedService>();
+		for (DefinedService service : lister.getServices()) {
+			services.add(service);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory() {
+			private AtomicInteger counter = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "glue-services-warmup-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<WarmupResult>> futures = new ArrayList<Future<WarmupResult>>(services.size());
+			for (final DefinedService service : services) {
+				futures.add(executor.submit(new Callable<WarmupResult>() {
+					@Override
+					public WarmupResult call() {
+						return warmup(service);
+					}
+				}));
+			}
+			List<WarmupResult> results = new ArrayList<WarmupResult>(futures.size());
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+				catch (ExecutionException e) {
+					results.add(new WarmupResult(services.get(i).getId(), 0, e.getCause()));
+				}
+			}
+			return Collections.unmodifiableList(results);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	public WarmupResult warmup(DefinedService service) {
+		long started = System.nanoTime();
+		try {
+			// for glue services this derives the interface and builds the binding plan
+			ComplexType input = service.getServiceInterface().getInputDefinition();
+			ComplexType output = service.getServiceInterface().getOutputDefinition();
+			// resolve the (lazily loaded) children of the types
+			TypeUtils.getAllChildren(input);
+			TypeUtils.getAllChildren(output);
+			if (service instanceof GlueService) {
+				((GlueService) service).getBindingPlan();
+			}
+			if (methodProvider != null) {
+				methodProvider.getResolutionCache().resolve(service.getId());
+				methodProvider.getBinder(service);
+			}
+			List<ComplexContent> inputs = samples.get(service.getId());
+			if (inputs != null && contextProvider != null) {
+				warmingUp.set(true);
+				try {
+					for (ComplexContent sample : inputs) {
+						new ServiceRuntime(service, contextProvider.newExecutionContext(null)).run(sample);
+					}
+				}
+				finally {
+					warmingUp.remove();
+				}
+			}
+			long duration = System.nanoTime() - started;
+			logger.debug("Warmed up " + service.getId() + " in " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms");
+			return new WarmupResult(service.getId(), duration, null);
+		}
+		catch (Exception e) {
+			logger.warn("Could not warm up service: " + service.getId(), e);
+			return new WarmupResult(service.getId(), System.nanoTime() - started, e);
+		}
+	}
+	
+	public static class WarmupResult {
+		private String id;
+		private long duration;
+		private Throwable exception;
+		
+		public WarmupResult(String id, long duration, Throwable exception) {
+			this.id = id;
+			this.duration = duration;
+			this.exception = exception;
+		}
+		
+		public String getId() {
+			return id;
+		}
+		
+		/**
+		 * The time it took in nanoseconds.
+		 */
+		public long getDuration() {
+			return duration;
+		}
+		
+		public Throwable getException() {
+			return exception;
+		}
+		
+		@Override
+		public String toString() {
+			return id + ": " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms" + (exception == null ? "" : " (" + exception.getMessage() + ")");
+		}
+	}
+}
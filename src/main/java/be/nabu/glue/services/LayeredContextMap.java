@@ -0,0 +1,180 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A context that reads through to the context of its parent and only stores its own changes.
+ * Creating a layer is constant time regardless of how large the parent context is, lookups behave exactly as if the parent had been copied.
+ * The parent should not be modified while the layer is in use, which holds for synchronous nested calls.
+ */
+public class LayeredContextMap extends AbstractMap<String, Object> {
+
+	private Map<String, Object> parent;
+	private Map<String, Object> local = new HashMap<String, Object>();
+	// keys of the parent that were removed in this layer
+	private Set<String> removed;
+
+	public LayeredContextMap(Map<String, Object> parent) {
+		this.parent = parent;
+	}
+
+	public Map<String, Object> getParent() {
+		return parent;
+	}
+
+	private boolean isInherited(Object key) {
+		return !local.containsKey(key) && (removed == null || !removed.contains(key)) && parent.containsKey(key);
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object value = local.get(key);
+		if (value != null || local.containsKey(key)) {
+			return value;
+		}
+		return removed != null && removed.contains(key) ? null : parent.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return local.containsKey(key) || isInherited(key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		Object previous = get(key);
+		local.put(key, value);
+		if (removed != null) {
+			removed.remove(key);
+		}
+		return previous;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		Object previous = get(key);
+		local.remove(key);
+		if (parent.containsKey(key)) {
+			if (removed == null) {
+				removed = new HashSet<String>();
+			}
+			removed.add((String) key);
+		}
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		local.clear();
+		if (removed == null) {
+			removed = new HashSet<String>();
+		}
+		removed.addAll(parent.keySet());
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				// take a snapshot of the keys so the map can be modified while iterating
+				List<String> keys = new ArrayList<String>(local.keySet());
+				for (String key : parent.keySet()) {
+					if (isInherited(key)) {
+						keys.add(key);
+					}
+				}
+				final Iterator<String> iterator = keys.iterator();
+				return new Iterator<Map.Entry<String, Object>>() {
+					private String last;
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+					@Override
+					public Map.Entry<String, Object> next() {
+						last = iterator.next();
+						return new LayeredEntry(last);
+					}
+					@Override
+					public void remove() {
+						if (last == null) {
+							throw new IllegalStateException();
+						}
+						LayeredContextMap.this.remove(last);
+						last = null;
+					}
+				};
+			}
+			@Override
+			public int size() {
+				int size = local.size();
+				for (String key : parent.keySet()) {
+					if (isInherited(key)) {
+						size++;
+					}
+				}
+				return size;
+			}
+		};
+	}
+
+	private class LayeredEntry implements Map.Entry<String, Object> {
+		private String key;
+
+		public LayeredEntry(String key) {
+			this.key = key;
+		}
+		@Override
+		public String getKey() {
+			return key;
+		}
+		@Override
+		public Object getValue() {
+			return get(key);
+		}
+		@Override
+		public Object setValue(Object value) {
+			return put(key, value);
+		}
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) object;
+			Object value = getValue();
+			return key.equals(entry.getKey()) && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+		}
+		@Override
+		public int hashCode() {
+			Object value = getValue();
+			return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.glue.api.Script;
+import be.nabu.glue.utils.ScriptUtils;
+import be.nabu.libs.services.api.ServiceInterface;
+
+/**
+ * Shares the derived interface of a script (the parsed script, the input and output types, the binding plan,...) between all glue services that run the same content.
+ * Entries are keyed on the full name of the script, the interface it implements, the repository it lives in, the environment and the type resolver and are only reused if the content hash still matches.
+ * The cached interface is never used to run the script, each service always parses and runs its own script so the executor tree itself is not shared.
+ * When a script changes, only its own entry is rebuilt.
+ */
+public class ScriptCompilationCache {
+
+	private static final ScriptCompilationCache instance = new ScriptCompilationCache(1000);
+	
+	public static ScriptCompilationCache getInstance() {
+		return instance;
+	}
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private int maxSize;
+	private ConcurrentMap<List<Object>, CompiledScript> compiled = new ConcurrentHashMap<List<Object>, CompiledScript>();
+	// the keys in the order they were added, it can contain keys that were invalidated in the meantime
+	private ConcurrentLinkedQueue<List<Object>> order = new ConcurrentLinkedQueue<List<Object>>();
+	private AtomicInteger queued = new AtomicInteger();
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+	public ScriptCompilationCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	GlueServiceInterface getServiceInterface(GlueService service, Script script, ServiceInterface implementedInterface) {
+		String hash = hash(script);
+		// if we can't read the source, we can't know whether it changed
+		if (hash == null) {
+			return service.buildServiceInterface(script, implementedInterface);
+		}
+		// the same name can point to different scripts in different repositories and the types can resolve differently
+		List<Object> key = Arrays.asList(ScriptUtils.getFullName(script), implementedInterface, ScriptUtils.getRoot(script.getRepository()), service.getEnvironment(), service.getTypeResolver());
+		CompiledScript current = compiled.get(key);
+		if (current != null && current.hash.equals(hash)) {
+			hits.incrementAndGet();
+			return current.serviceInterface;
+		}
+		misses.incrementAndGet();
+		CompiledScript result = new CompiledScript(hash, service.buildServiceInterface(script, implementedInterface));
+		// if someone else compiled the same content in the meantime, everyone uses theirs
+		CompiledScript existing = current == null ? compiled.putIfAbsent(key, result) : (compiled.replace(key, current, result) ? null : compiled.get(key));
+		if (current == null && existing == null) {
+			order.offer(key);
+			queued.incrementAndGet();
+			// evict the oldest scripts, like the service resolution cache we trim when the queue holds too many invalidated keys
+			List<Object> oldest;
+			while ((compiled.size() > maxSize || queued.get() > maxSize * 2) && (oldest = order.poll()) != null) {
+				queued.decrementAndGet();
+				compiled.remove(oldest);
+			}
+		}
+		return existing != null && existing.hash.equals(hash) ? existing.serviceInterface : result.serviceInterface;
+	}
+
+	/**
+	 * Drops the compiled form of the given scripts, e.g. because something they depend on changed.
+	 */
+	public void invalidate(String...ids) {
+		List<String> list = Arrays.asList(ids);
+		Iterator<List<Object>> iterator = compiled.keySet().iterator();
+		while (iterator.hasNext()) {
+			List<Object> key = iterator.next();
+			if (list.contains(key.get(0))) {
+				iterator.remove();
+				// a type the script could not resolve may have been deployed since, other repositories are not affected
+				if (key.get(4) instanceof CachingTypeResolver) {
+					((CachingTypeResolver) key.get(4)).invalidateMisses();
+				}
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		compiled.clear();
+		order.clear();
+		queued.set(0);
+		CachingTypeResolver.invalidateAllResolvers();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int getSize() {
+		return compiled.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	private String hash(Script script) {
+		try {
+			InputStream source = script.getSource();
+			if (source == null) {
+				return null;
+			}
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				byte [] buffer = new byte[8192];
+				int read;
+				while ((read = source.read(buffer)) > 0) {
+					digest.update(buffer, 0, read);
+				}
+				StringBuilder builder = new StringBuilder();
+				for (byte single : digest.digest()) {
+					builder.append(String.format("%02x", single));
+				}
+				return builder.toString();
+			}
+			finally {
+				source.close();
+			}
+		}
+		catch (IOException e) {
+			logger.warn("Could not read the source of script: " + ScriptUtils.getFullName(script), e);
+			return null;
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static class CompiledScript {
+		private String hash;
+		private GlueServiceInterface serviceInterface;
+
+		public CompiledScript(String hash, GlueServiceInterface serviceInterface) {
+			this.hash = hash;
+			this.serviceInterface = serviceInterface;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.metrics.api.MetricInstance;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.types.CollectionHandlerFactory;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.CollectionHandlerProvider;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Collects individual calls to a service and dispatches them as a single call to a service that accepts a list of inputs.
+ * The batch service must have exactly one list in its input and one list in its output, the outputs are returned to the callers in the order of the inputs.
+ * A batch is dispatched when it is full, when the window expires or when one of the callers needs its result, whichever comes first.
+ * Calls are only batched with other calls from the same principal in the same transaction context, the batch runs in the context of the first caller with the earliest deadline of all callers.
+ */
+public class ServiceBatcher {
+
+	private static ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "glue-services-batcher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	// batches that are dispatched by the window or on behalf of a caller with a deadline always run here, never on the scheduler or the submitting thread
+	private static ExecutorService dispatcher = Executors.newCachedThreadPool(new ThreadFactory() {
+		private AtomicInteger counter = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "glue-services-batch-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private ServiceMethodProvider provider;
+	private DefinedService service, batchService;
+	private int maxSize;
+	private long window;
+	private String inputList, outputList;
+	private ComplexType inputItemType, outputItemType;
+	// the open batch per principal and transaction
+	private Map<BatchKey, Batch> open = new HashMap<BatchKey, Batch>();
+
+	ServiceBatcher(ServiceMethodProvider provider, DefinedService service, DefinedService batchService, int maxSize, long window) {
+		this.provider = provider;
+		this.service = service;
+		this.batchService = batchService;
+		this.maxSize = maxSize;
+		this.window = window;
+		Element<?> input = getList(batchService.getServiceInterface().getInputDefinition());
+		Element<?> output = getList(batchService.getServiceInterface().getOutputDefinition());
+		if (input == null || output == null) {
+			throw new IllegalArgumentException("The batch service " + batchService.getId() + " must have exactly one list in its input and output");
+		}
+		this.inputList = input.getName();
+		this.outputList = output.getName();
+		this.inputItemType = input.getType() instanceof ComplexType ? (ComplexType) input.getType() : null;
+		this.outputItemType = service.getServiceInterface().getOutputDefinition();
+	}
+
+	private static Element<?> getList(ComplexType type) {
+		Element<?> list = null;
+		for (Element<?> element : TypeUtils.getAllChildren(type)) {
+			if (element.getType().isList(element.getProperties())) {
+				if (list != null) {
+					return null;
+				}
+				list = element;
+			}
+		}
+		return list;
+	}
+
+	public Future<ServiceResult> submit(CombinedExecutionContext context, ComplexContent input) {
+		BatchKey key = new BatchKey(context.getPrincipal() == null ? null : context.getPrincipal().getName(), context.getTransactionContext());
+		Batch full = null;
+		BatchedCall call;
+		synchronized(open) {
+			Batch batch = open.get(key);
+			if (batch == null) {
+				batch = new Batch(key, context);
+				open.put(key, batch);
+				final Batch scheduled = batch;
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						// dispatch on a different thread so one slow batch does not hold up the windows of the others
+						scheduled.dispatchAsynchronously();
+					}
+				}, window, TimeUnit.MILLISECONDS);
+			}
+			call = new BatchedCall(batch, input);
+			batch.calls.add(call);
+			batch.deadline = ServiceDeadline.earliest(batch.deadline, ServiceDeadline.get(context));
+			if (batch.calls.size() >= maxSize) {
+				open.remove(key);
+				full = batch;
+			}
+		}
+		if (full != null) {
+			// a caller with a deadline should not be held up by running the whole batch
+			if (ServiceDeadline.get(context) != 0) {
+				full.dispatchAsynchronously();
+			}
+			else {
+				full.dispatch();
+			}
+		}
+		return call;
+	}
+
+	public DefinedService getService() {
+		return service;
+	}
+
+	public DefinedService getBatchService() {
+		return batchService;
+	}
+
+	// transaction contexts are compared by identity
+	private static class BatchKey {
+		private String principal;
+		private Object transactionContext;
+
+		public BatchKey(String principal, Object transactionContext) {
+			this.principal = principal;
+			this.transactionContext = transactionContext;
+		}
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof BatchKey)) {
+				return false;
+			}
+			BatchKey other = (BatchKey) object;
+			return other.transactionContext == transactionContext && (principal == null ? other.principal == null : principal.equals(other.principal));
+		}
+		@Override
+		public int hashCode() {
+			return 31 * (principal == null ? 0 : principal.hashCode()) + System.identityHashCode(transactionContext);
+		}
+	}
+
+	private class Batch {
+		private BatchKey key;
+		private CombinedExecutionContext context;
+		private List<BatchedCall> calls = new ArrayList<BatchedCall>();
+		private AtomicBoolean dispatched = new AtomicBoolean();
+		// the earliest deadline of all the callers, guarded by the open map
+		private long deadline;
+
+		public Batch(BatchKey key, CombinedExecutionContext context) {
+			this.key = key;
+			this.context = context;
+		}
+
+		public void dispatchAsynchronously() {
+			if (!dispatched.get()) {
+				dispatcher.submit(new Runnable() {
+					@Override
+					public void run() {
+						dispatch();
+					}
+				});
+			}
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		public void dispatch() {
+			if (!dispatched.compareAndSet(false, true)) {
+				return;
+			}
+			long deadline;
+			// once it is detached, nobody can add to it anymore
+			synchronized(open) {
+				if (open.get(key) == this) {
+					open.remove(key);
+				}
+				deadline = this.deadline;
+			}
+			CombinedExecutionContextImpl context = new CombinedExecutionContextImpl(this.context, this.context);
+			context.setDeadline(deadline);
+			MetricInstance metrics = provider.isMetrics() ? GlueServiceMetrics.getInstance(context, batchService.getId()) : null;
+			GlueServiceMetrics.increment(metrics, GlueServiceMetrics.BATCHES);
+			try {
+				ServiceDeadline.check(deadline, batchService.getId());
+				ComplexContent input = batchService.getServiceInterface().getInputDefinition().newInstance();
+				List<Object> inputs = new ArrayList<Object>(calls.size());
+				for (BatchedCall call : calls) {
+					inputs.add(call.input == null || inputItemType == null || call.input.getType().equals(inputItemType) ? call.input : provider.cast(call.input, inputItemType));
+				}
+				input.set(inputList, inputs);
+				ComplexContent output = provider.runInline(batchService, context, input, null);
+				Object result = output == null ? null : output.get(outputList);
+				Collection<?> outputs = null;
+				if (result instanceof Collection) {
+					outputs = (Collection<?>) result;
+				}
+				else if (result != null) {
+					CollectionHandlerProvider handler = CollectionHandlerFactory.getInstance().getHandler().getHandler(result.getClass());
+					outputs = handler == null ? null : handler.getAsCollection(result);
+				}
+				if (outputs == null || outputs.size() != calls.size()) {
+					throw new ServiceException("GLUE-BATCH-0", "The batch service " + batchService.getId() + " returned " + (outputs == null ? 0 : outputs.size()) + " outputs for " + calls.size() + " inputs");
+				}
+				int index = 0;
+				for (Object item : outputs) {
+					ComplexContent content = item == null || (item instanceof ComplexContent && ((ComplexContent) item).getType().equals(outputItemType)) ? (ComplexContent) item : provider.cast(item, outputItemType);
+					calls.get(index++).complete(ServiceMethodProvider.newResult(content, null));
+				}
+			}
+			catch (Exception e) {
+				ServiceException exception = e instanceof ServiceException ? (ServiceException) e : new ServiceException(e);
+				for (BatchedCall call : calls) {
+					call.complete(ServiceMethodProvider.newResult(null, exception));
+				}
+			}
+		}
+	}
+
+	private static class BatchedCall implements Future<ServiceResult> {
+		private Batch batch;
+		private ComplexContent input;
+		private CountDownLatch latch = new CountDownLatch(1);
+		private volatile ServiceResult result;
+
+		public BatchedCall(Batch batch, ComplexContent input) {
+			this.batch = batch;
+			this.input = input;
+		}
+
+		void complete(ServiceResult result) {
+			this.result = result;
+			latch.countDown();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			// the call is part of a batch, it can not be taken out once it is in
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return latch.getCount() == 0;
+		}
+
+		@Override
+		public ServiceResult get() throws InterruptedException, ExecutionException {
+			// someone needs the result, no point in waiting for the window to expire
+			batch.dispatch();
+			latch.await();
+			return result;
+		}
+
+		@Override
+		public ServiceResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			// dispatching on this thread could take longer than we are willing to wait
+			batch.dispatchAsynchronously();
+			if (!latch.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.metrics.api.MetricInstance;
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * Limits the amount of concurrent executions of a service so one slow dependency can not take all the threads.
+ * When all permits are taken, a limited amount of callers can wait for a limited amount of time, everyone else is rejected immediately.
+ * Bulkheads are registered per service id, they are applied to glue services when they are executed and to all other services when they are called from glue.
+ */
+public class ServiceBulkhead {
+
+	private static ConcurrentMap<String, ServiceBulkhead> bulkheads = new ConcurrentHashMap<String, ServiceBulkhead>();
+	
+	public static ServiceBulkhead get(String serviceId) {
+		return serviceId == null || bulkheads.isEmpty() ? null : bulkheads.get(serviceId);
+	}
+	
+	public static void register(String serviceId, ServiceBulkhead bulkhead) {
+		bulkheads.put(serviceId, bulkhead);
+	}
+	
+	public static void unregister(String serviceId) {
+		bulkheads.remove(serviceId);
+	}
+	
+	private int maxConcurrent, maxWaiting;
+	private long timeout;
+	private Semaphore permits;
+	private AtomicInteger waiting = new AtomicInteger();
+	private AtomicLong rejected = new AtomicLong();
+	
+	/**
+	 * @param maxConcurrent the maximum amount of concurrent executions
+	 * @param maxWaiting the maximum amount of callers that can wait for a permit, 0 means no one waits
+	 * @param timeout how long a caller waits for a permit, in milliseconds
+	 */
+	public ServiceBulkhead(int maxConcurrent, int maxWaiting, long timeout) {
+		this.maxConcurrent = maxConcurrent;
+		this.maxWaiting = maxWaiting;
+		this.timeout = timeout;
+		this.permits = new Semaphore(maxConcurrent, true);
+	}
+	
+	/**
+	 * Every successful acquire must be followed by a release.
+	 */
+	public void acquire(String serviceId, MetricInstance metrics) throws ServiceException {
+		acquire(serviceId, metrics, 0);
+	}
+	
+	/**
+	 * A caller never waits beyond its deadline, if it expires while waiting the deadline exception is thrown rather than a rejection.
+	 */
+	public void acquire(String serviceId, MetricInstance metrics, long deadline) throws ServiceException {
+		if (permits.tryAcquire()) {
+			return;
+		}
+		ServiceDeadline.check(deadline, serviceId);
+		if (maxWaiting > 0 && timeout > 0) {
+			if (waiting.incrementAndGet() <= maxWaiting) {
+				long started = metrics == null ? 0 : System.nanoTime();
+				long wait = TimeUnit.MILLISECONDS.toNanos(timeout);
+				if (deadline != 0) {
+					wait = Math.min(wait, deadline - System.nanoTime());
+				}
+				try {
+					if (permits.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+						GlueServiceMetrics.duration(metrics, GlueServiceMetrics.BULKHEAD_WAIT, started);
+						return;
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ServiceException(e);
+				}
+				finally {
+					waiting.decrementAndGet();
+				}
+			}
+			else {
+				waiting.decrementAndGet();
+			}
+		}
+		ServiceDeadline.check(deadline, serviceId);
+		rejected.incrementAndGet();
+		GlueServiceMetrics.increment(metrics, GlueServiceMetrics.BULKHEAD_REJECTED);
+		throw new ServiceBulkheadException(serviceId, maxConcurrent);
+	}
+	
+	public void release() {
+		permits.release();
+	}
+	
+	public int getInFlight() {
+		return maxConcurrent - permits.availablePermits();
+	}
+	
+	public int getWaiting() {
+		return waiting.get();
+	}
+	
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public int getMaxWaiting() {
+		return maxWaiting;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public static class ServiceBulkheadException extends ServiceException {
+		private static final long serialVersionUID = 1L;
+		
+		public ServiceBulkheadException(String serviceId, int maxConcurrent) {
+			super("GLUE-BULKHEAD-0", "The service " + serviceId + " is already running " + maxConcurrent + " times, the call is rejected");
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * Deadlines are absolute points in time (in System.nanoTime) carried by the combined execution context, nested calls inherit the deadline of their caller.
+ * A deadline of 0 means there is none.
+ */
+public class ServiceDeadline {
+
+	public static long get(Object context) {
+		return context instanceof CombinedExecutionContextImpl ? ((CombinedExecutionContextImpl) context).getDeadline() : 0;
+	}
+	
+	/**
+	 * The deadline that comes first, ignoring those that are not set.
+	 */
+	public static long earliest(long deadline, long other) {
+		if (deadline == 0) {
+			return other;
+		}
+		else if (other == 0) {
+			return deadline;
+		}
+		// compare the difference to survive an overflow of the nano time
+		return deadline - other < 0 ? deadline : other;
+	}
+	
+	public static long after(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		// 0 is reserved for no deadline
+		return deadline == 0 ? 1 : deadline;
+	}
+	
+	public static boolean isExpired(long deadline) {
+		return deadline != 0 && System.nanoTime() - deadline >= 0;
+	}
+	
+	public static void check(long deadline, String serviceId) throws DeadlineExceededException {
+		if (isExpired(deadline)) {
+			throw new DeadlineExceededException(serviceId);
+		}
+	}
+	
+	/**
+	 * Waits for the future until the deadline expires, at which point it is cancelled.
+	 */
+	public static <T> T get(Future<T> future, long deadline, String serviceId) throws InterruptedException, ExecutionException, DeadlineExceededException {
+		return get(future, deadline, serviceId, true);
+	}
+	
+	/**
+	 * Waits for the future until the deadline expires, only cancel it if no one else is waiting for it.
+	 */
+	public static <T> T get(Future<T> future, long deadline, String serviceId, boolean cancel) throws InterruptedException, ExecutionException, DeadlineExceededException {
+		if (deadline == 0) {
+			return future.get();
+		}
+		try {
+			return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		catch (TimeoutException e) {
+			if (cancel) {
+				future.cancel(true);
+			}
+			throw new DeadlineExceededException(serviceId);
+		}
+	}
+	
+	/**
+	 * Finds the deadline exception in the cause chain (if any) so it can be rethrown as is.
+	 */
+	public static DeadlineExceededException find(Throwable throwable) {
+		while (throwable != null) {
+			if (throwable instanceof DeadlineExceededException) {
+				return (DeadlineExceededException) throwable;
+			}
+			throwable = throwable.getCause();
+		}
+		return null;
+	}
+	
+	public static class DeadlineExceededException extends ServiceException {
+		private static final long serialVersionUID = 1L;
+		
+		public DeadlineExceededException(String serviceId) {
+			super("GLUE-DEADLINE-0", "The deadline expired while running: " + serviceId);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.types.CollectionHandlerFactory;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.CollectionHandlerProvider;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.java.BeanType;
+import be.nabu.libs.types.properties.CollectionHandlerProviderProperty;
+
+/**
+ * Binds the positional arguments of a glue call to the input of a service.
+ * Everything that depends only on the input definition is calculated once per service.
+ */
+public class ServiceInputBinder {
+
+	private ComplexType definition;
+	private Slot [] slots;
+	// the varargs slot is always the last one, if any
+	private boolean varargs;
+	private ServiceMethodProvider provider;
+
+	ServiceInputBinder(ServiceMethodProvider provider, ComplexType definition) {
+		this.provider = provider;
+		this.definition = definition;
+		List<Slot> slots = new ArrayList<Slot>();
+		for (Element<?> element : TypeUtils.getAllChildren(definition)) {
+			slots.add(new Slot(element));
+		}
+		this.slots = slots.toArray(new Slot[slots.size()]);
+		// if the last element is a list, allow for varargs
+		this.varargs = this.slots.length > 0 && this.slots[this.slots.length - 1].list;
+	}
+
+	public ComplexType getDefinition() {
+		return definition;
+	}
+
+	/**
+	 * The amount of arguments that will actually be used if that many are available.
+	 */
+	public int getArgumentCount(int available) {
+		return varargs ? available : Math.min(available, slots.length);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public ComplexContent bind(Object...arguments) {
+		ComplexContent input = definition.newInstance();
+		for (int i = 0; i < slots.length && i < arguments.length; i++) {
+			Slot slot = slots[i];
+			boolean isVarargs = varargs && i == slots.length - 1;
+			if (!slot.list) {
+				if (arguments[i] != null) {
+					input.set(slot.name, slot.convert(arguments[i]));
+				}
+			}
+			// a single list argument that is already compatible can be passed along as is
+			else if (!isVarargs || i == arguments.length - 1) {
+				if (arguments[i] != null) {
+					if (slot.isCompatible(arguments[i])) {
+						input.set(slot.name, arguments[i]);
+					}
+					else {
+						CollectionHandlerProvider handler = slot.handler;
+						Object collection = handler.create(null, size(arguments[i]));
+						int index = 0;
+						for (Object item : asList(arguments[i])) {
+							handler.set(collection, index++, item == null ? null : slot.convert(item));
+						}
+						input.set(slot.name, collection);
+					}
+				}
+			}
+			// multiple varargs, we append them all to a single collection
+			else {
+				CollectionHandlerProvider handler = slot.handler;
+				Object collection = null;
+				int index = 0;
+				for (int j = i; j < arguments.length; j++) {
+					if (arguments[j] != null) {
+						List<?> items = asList(arguments[j]);
+						if (collection == null) {
+							collection = handler.create(null, Math.max(items.size(), arguments.length - i));
+						}
+						for (Object item : items) {
+							handler.set(collection, index++, item == null ? null : slot.convert(item));
+						}
+					}
+				}
+				if (collection != null) {
+					input.set(slot.name, collection);
+				}
+			}
+		}
+		return input;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<?> asList(Object value) {
+		if (value instanceof Object[]) {
+			return Arrays.asList((Object[]) value);
+		}
+		else if (value instanceof List) {
+			return (List<Object>) value;
+		}
+		else if (value instanceof Collection) {
+			return new ArrayList<Object>((Collection<Object>) value);
+		}
+		else {
+			return Arrays.asList(value);
+		}
+	}
+
+	private static int size(Object value) {
+		if (value instanceof Object[]) {
+			return ((Object[]) value).length;
+		}
+		else if (value instanceof Collection) {
+			return ((Collection<?>) value).size();
+		}
+		else {
+			return 1;
+		}
+	}
+
+	private class Slot {
+		private String name;
+		private boolean list, defaultHandler;
+		private CollectionHandlerProvider<?, ?> handler;
+		private Class<?> beanClass;
+		private ComplexType complexType;
+
+		public Slot(Element<?> element) {
+			this.name = element.getName();
+			this.list = element.getType().isList(element.getProperties());
+			if (list) {
+				this.handler = ValueUtils.getValue(CollectionHandlerProviderProperty.getInstance(), element.getProperties());
+				// defaults to a list
+				if (this.handler == null) {
+					this.handler = CollectionHandlerFactory.getInstance().getHandler().getHandler(List.class);
+					this.defaultHandler = true;
+				}
+			}
+			if (element.getType() instanceof BeanType) {
+				this.beanClass = ((BeanType<?>) element.getType()).getBeanClass();
+			}
+			if (element.getType() instanceof ComplexType) {
+				this.complexType = (ComplexType) element.getType();
+			}
+		}
+
+		public Object convert(Object value) {
+			if (isUsable(value)) {
+				return value;
+			}
+			// if we have a complex type, we may need to mask it
+			else if (complexType != null) {
+				return provider.cast(value, complexType);
+			}
+			return value;
+		}
+
+		// whether the value can be used without conversion
+		private boolean isUsable(Object value) {
+			return (beanClass != null && beanClass.isAssignableFrom(value.getClass()))
+				|| (complexType != null && value instanceof ComplexContent && ((ComplexContent) value).getType().equals(complexType));
+		}
+
+		// whether the value is a list that we can set as is: all the items need to be usable without conversion
+		public boolean isCompatible(Object value) {
+			if (!defaultHandler || !(value instanceof List)) {
+				return false;
+			}
+			if (complexType != null) {
+				for (Object item : (List<?>) value) {
+					if (item != null && !isUsable(item)) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+	}
+}
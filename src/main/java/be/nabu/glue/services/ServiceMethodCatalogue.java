@@ -0,0 +1,197 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.glue.api.MethodDescription;
+import be.nabu.glue.impl.SimpleMethodDescription;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.DefinedServiceLister;
+
+/**
+ * The method descriptions of all listed services, indexed per namespace.
+ * The index itself only contains the services, the (expensive) descriptions are calculated per namespace when they are first requested.
+ * Readers always see an immutable snapshot, writers replace it.
+ */
+public class ServiceMethodCatalogue {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private DefinedServiceLister lister;
+	private ServiceMethodProvider provider;
+
+	// namespace > name > service
+	private volatile Map<String, Map<String, DefinedService>> index;
+	// namespace > descriptions
+	private ConcurrentMap<String, List<MethodDescription>> descriptions = new ConcurrentHashMap<String, List<MethodDescription>>();
+	private volatile List<MethodDescription> all;
+
+	public ServiceMethodCatalogue(DefinedServiceLister lister, ServiceMethodProvider provider) {
+		this.lister = lister;
+		this.provider = provider;
+	}
+
+	public List<MethodDescription> getMethods() {
+		List<MethodDescription> all = this.all;
+		if (all == null) {
+			Map<String, Map<String, DefinedService>> index = getIndex();
+			List<MethodDescription> methods = new ArrayList<MethodDescription>();
+			for (String namespace : index.keySet()) {
+				methods.addAll(getMethods(index, namespace));
+			}
+			all = Collections.unmodifiableList(methods);
+			// only publish if nothing changed in the meantime
+			synchronized(this) {
+				if (index == this.index) {
+					this.all = all;
+				}
+			}
+		}
+		return all;
+	}
+
+	public List<MethodDescription> getMethods(String namespace) {
+		return getMethods(getIndex(), namespace);
+	}
+
+	public List<String> getNamespaces() {
+		return new ArrayList<String>(getIndex().keySet());
+	}
+
+	private List<MethodDescription> getMethods(Map<String, Map<String, DefinedService>> index, String namespace) {
+		String key = namespace == null ? "" : namespace;
+		List<MethodDescription> methods = descriptions.get(key);
+		if (methods == null) {
+			Map<String, DefinedService> services = index.get(key);
+			if (services == null) {
+				return Collections.emptyList();
+			}
+			methods = new ArrayList<MethodDescription>();
+			for (DefinedService service : services.values()) {
+				try {
+					methods.add(new SimpleMethodDescription(
+						key.isEmpty() ? null : key,
+						getName(service.getId()),
+						null,
+						provider.toParameters(service.getServiceInterface().getInputDefinition(), true),
+						provider.toParameters(service.getServiceInterface().getOutputDefinition())
+					));
+				}
+				catch (Exception e) {
+					logger.error("Could not load service: " + service.getId(), e);
+				}
+			}
+			methods = Collections.unmodifiableList(methods);
+			synchronized(this) {
+				if (index == this.index) {
+					descriptions.put(key, methods);
+				}
+			}
+		}
+		return methods;
+	}
+
+	private Map<String, Map<String, DefinedService>> getIndex() {
+		Map<String, Map<String, DefinedService>> index = this.index;
+		if (index == null) {
+			synchronized(this) {
+				if (this.index == null) {
+					Map<String, Map<String, DefinedService>> newIndex = new TreeMap<String, Map<String, DefinedService>>();
+					if (lister != null) {
+						for (DefinedService service : lister.getServices()) {
+							String namespace = getNamespace(service.getId());
+							if (!newIndex.containsKey(namespace)) {
+								newIndex.put(namespace, new TreeMap<String, DefinedService>());
+							}
+							newIndex.get(namespace).put(getName(service.getId()), service);
+						}
+					}
+					this.index = Collections.unmodifiableMap(newIndex);
+				}
+				index = this.index;
+			}
+		}
+		return index;
+	}
+
+	public void add(DefinedService service) {
+		String namespace = getNamespace(service.getId());
+		synchronized(this) {
+			Map<String, Map<String, DefinedService>> newIndex = copy(getIndex(), namespace);
+			newIndex.get(namespace).put(getName(service.getId()), service);
+			publish(newIndex, namespace);
+		}
+	}
+
+	public void remove(String id) {
+		String namespace = getNamespace(id);
+		synchronized(this) {
+			Map<String, Map<String, DefinedService>> current = getIndex();
+			if (current.containsKey(namespace) && current.get(namespace).containsKey(getName(id))) {
+				Map<String, Map<String, DefinedService>> newIndex = copy(current, namespace);
+				newIndex.get(namespace).remove(getName(id));
+				if (newIndex.get(namespace).isEmpty()) {
+					newIndex.remove(namespace);
+				}
+				publish(newIndex, namespace);
+			}
+		}
+	}
+
+	/**
+	 * Drops everything, the next read will rebuild the index from the lister.
+	 */
+	public synchronized void clear() {
+		index = null;
+		all = null;
+		descriptions.clear();
+	}
+
+	// only the namespace that is modified is copied, the others are shared with the previous snapshot
+	private Map<String, Map<String, DefinedService>> copy(Map<String, Map<String, DefinedService>> index, String namespace) {
+		Map<String, Map<String, DefinedService>> newIndex = new TreeMap<String, Map<String, DefinedService>>(index);
+		newIndex.put(namespace, index.containsKey(namespace) ? new TreeMap<String, DefinedService>(index.get(namespace)) : new TreeMap<String, DefinedService>());
+		return newIndex;
+	}
+
+	private void publish(Map<String, Map<String, DefinedService>> newIndex, String namespace) {
+		index = Collections.unmodifiableMap(newIndex);
+		descriptions.remove(namespace);
+		all = null;
+	}
+
+	private static String getNamespace(String id) {
+		int index = id.lastIndexOf('.');
+		return index >= 0 ? id.substring(0, index) : "";
+	}
+
+	private static String getName(String id) {
+		int index = id.lastIndexOf('.');
+		return index >= 0 ? id.substring(index + 1) : id;
+	}
+}
@@ -17,18 +17,27 @@
 
 package be.nabu.glue.services;
 
+import java.math.BigDecimal;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import be.nabu.glue.api.ExecutionContext;
+import be.nabu.glue.api.Executor;
 import be.nabu.glue.api.MethodDescription;
 import be.nabu.glue.api.ParameterDescription;
 import be.nabu.glue.core.api.MethodProvider;
@@ -38,7 +47,7 @@ import be.nabu.glue.utils.ScriptRuntime;
 import be.nabu.libs.evaluator.EvaluationException;
 import be.nabu.libs.evaluator.api.Operation;
 import be.nabu.libs.evaluator.base.BaseMethodOperation;
-import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.metrics.api.MetricInstance;
 import be.nabu.libs.property.api.Value;
 import be.nabu.libs.services.DefinedServiceResolverFactory;
 import be.nabu.libs.services.ServiceRuntime;
@@ -49,37 +58,62 @@ import be.nabu.libs.services.api.ExecutionContextProvider;
 import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.services.api.ServiceResult;
 import be.nabu.libs.services.api.ServiceRunner;
-import be.nabu.libs.types.CollectionHandlerFactory;
 import be.nabu.libs.types.TypeUtils;
-import be.nabu.libs.types.api.CollectionHandlerProvider;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
 import be.nabu.libs.types.api.DefinedType;
 import be.nabu.libs.types.api.Element;
 import be.nabu.libs.types.api.SimpleType;
 import be.nabu.libs.types.java.BeanInstance;
-import be.nabu.libs.types.java.BeanType;
 import be.nabu.libs.types.map.MapContent;
 import be.nabu.libs.types.mask.MaskedContent;
-import be.nabu.libs.types.properties.CollectionHandlerProviderProperty;
 import be.nabu.libs.types.properties.MaxOccursProperty;
-import be.nabu.libs.types.structure.Structure;
 
 public class ServiceMethodProvider implements MethodProvider {
 	
 	public static final String SERVICE_CONTEXT = "serviceContext";
 	
-	private Logger logger = LoggerFactory.getLogger(getClass());
-
+	// when this annotation is present on the calling line, the service is started in the background and only joined when the result is read
+	public static final String ASYNC_ANNOTATION = "async";
+	
+	// calls a service for each element of a list in parallel: services.parallel(serviceId, inputs, maxConcurrency?)
+	public static final String PARALLEL = "services.parallel";
+	
 	private DefinedServiceResolver serviceResolver = DefinedServiceResolverFactory.getInstance().getResolver();
+	
+	// every glue method name is probed against every provider so we remember both hits and misses
+	private ServiceResolutionCache resolutionCache = new ServiceResolutionCache(serviceResolver, 10000);
 
 	private ExecutionContextProvider provider;
 
 	private DefinedServiceLister lister;
 	
-	private List<MethodDescription> methods;
+	private ServiceMethodCatalogue catalogue;
+	
+	// the available methods together with the catalogue snapshot they were built from
+	private volatile AvailableMethods methods;
 	
 	private ServiceRunner runner;
+	
+	private boolean asynchronous;
+	
+	private int maxConcurrency = Runtime.getRuntime().availableProcessors();
+	
+	private volatile ExecutorService executor;
+	
+	private boolean metrics = GlueServiceMetrics.isEnabledByDefault();
+	
+	private ConcurrentMap<String, ServiceInputBinder> binders = new ConcurrentHashMap<String, ServiceInputBinder>();
+	
+	// results of services that are known to be idempotent, glue services configure their own cache with @cache
+	private ConcurrentMap<String, ServiceResultCache> resultCaches = new ConcurrentHashMap<String, ServiceResultCache>();
+	
+	// services for which concurrent identical calls share a single execution, glue services can also ask for this with @coalesce
+	private Set<String> coalesced = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private SingleFlight singleFlight = new SingleFlight();
+	
+	// services whose calls are collected and sent as one call to a service that accepts a list
+	private ConcurrentMap<String, ServiceBatcher> batchers = new ConcurrentHashMap<String, ServiceBatcher>();
 
 	public ServiceMethodProvider(DefinedServiceLister lister, ExecutionContextProvider provider) {
 		this(lister, provider, null);
@@ -89,59 +123,203 @@ public class ServiceMethodProvider implements MethodProvider {
 		this.lister = lister;
 		this.provider = provider;
 		this.runner = runner;
+		this.catalogue = new ServiceMethodCatalogue(lister, this);
 	}
 	
 	@Override
 	public Operation<ExecutionContext> resolve(String name) {
-		DefinedService resolve = serviceResolver.resolve(name);
+		if (PARALLEL.equals(name)) {
+			return new ParallelServiceOperation();
+		}
+		DefinedService resolve = resolutionCache.resolve(name);
 		return resolve == null ? null : new GlueServiceOperation(resolve);
 	}
+	
+	/**
+	 * Should be called when services are added, updated or removed in the lister so we don't serve stale lookups.
+	 */
+	public void invalidate(String...ids) {
+		resolutionCache.invalidate(ids);
+		for (String id : ids) {
+			binders.remove(id);
+			DefinedService service = serviceResolver.resolve(id);
+			if (service == null) {
+				catalogue.remove(id);
+			}
+			else {
+				catalogue.add(service);
+			}
+		}
+	}
+	
+	public void invalidateAll() {
+		resolutionCache.invalidateAll();
+		binders.clear();
+		catalogue.clear();
+		ConversionCache.getInstance().clear();
+	}
+	
+	public ServiceResolutionCache getResolutionCache() {
+		return resolutionCache;
+	}
 
 	@Override
 	public List<MethodDescription> getAvailableMethods() {
-		if (methods == null) {
-			synchronized(this) {
-				if (methods == null) {
-					methods = getMethods();
-				}
-			}
+		List<MethodDescription> services = catalogue.getMethods();
+		AvailableMethods methods = this.methods;
+		// the catalogue returns the same snapshot as long as nothing changed
+		if (methods == null || services != methods.catalogue) {
+			List<MethodDescription> list = new ArrayList<MethodDescription>(services.size() + 1);
+			list.add(getParallelDescription());
+			list.addAll(services);
+			methods = new AvailableMethods(services, Collections.unmodifiableList(list));
+			this.methods = methods;
 		}
-		return methods;
+		return methods.methods;
 	}
 	
-	private List<MethodDescription> getMethods() {
-		List<MethodDescription> methods = new ArrayList<MethodDescription>();
-		if (lister != null) {
-			for (DefinedService service : lister.getServices()) {
-				try {
-					int index = service.getId().lastIndexOf('.');
-					String namespace = index >= 0 ? service.getId().substring(0, index) : null;
-					String name = index >= 0 ? service.getId().substring(index + 1) : service.getId();
-					methods.add(new SimpleMethodDescription(
-						namespace, 
-						name, 
-						null, 
-						toParameters(service.getServiceInterface().getInputDefinition(), true), 
-						toParameters(service.getServiceInterface().getOutputDefinition())
-					));
-				}
-				catch (Exception e) {
-					logger.error("Could not load service: " + service.getId(), e);
-				}
-			}
-		}
-		return methods;
+	public List<MethodDescription> getAvailableMethods(String namespace) {
+		return catalogue.getMethods(namespace);
+	}
+	
+	/**
+	 * Adds or replaces a service in the method catalogue, for example when it is deployed after startup.
+	 */
+	public void serviceAdded(DefinedService service) {
+		resolutionCache.invalidate(service.getId());
+		binders.remove(service.getId());
+		catalogue.add(service);
+	}
+	
+	public void serviceRemoved(String id) {
+		resolutionCache.invalidate(id);
+		binders.remove(id);
+		catalogue.remove(id);
+	}
+	
+	private MethodDescription getParallelDescription() {
+		SimpleParameterDescription inputs = new SimpleParameterDescription("inputs", "The inputs, one for each call", "object", false);
+		inputs.setList(true);
+		SimpleParameterDescription outputs = new SimpleParameterDescription("outputs", "The outputs in the order of the inputs", "object", false);
+		outputs.setList(true);
+		return new SimpleMethodDescription(
+			PARALLEL.substring(0, PARALLEL.lastIndexOf('.')), 
+			PARALLEL.substring(PARALLEL.lastIndexOf('.') + 1), 
+			"Calls the service for each of the inputs in parallel and returns the outputs in order", 
+			Arrays.asList(new ParameterDescription[] {
+				new SimpleParameterDescription("service", "The id of the service", "string", false),
+				inputs,
+				new SimpleParameterDescription("maxConcurrency", "The maximum amount of concurrent calls", "integer", false)
+			}), 
+			Arrays.asList(new ParameterDescription[] { outputs })
+		);
 	}
 	
 	public List<ParameterDescription> toParameters(ComplexType complexType) {
 		return toParameters(complexType, false);
 	}
 	
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	/**
+	 * When set, all service calls that go through a runner return immediately with a result that is joined on first access.
+	 * This only applies to scripts that run as a glue service, those join whatever is still pending when they finish. Calls from any other script remain synchronous.
+	 */
+	public void setAsynchronous(boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+	
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	/**
+	 * The executor used for parallel calls when there is no runner. It should not queue tasks behind busy threads (e.g. by running them on the caller instead)
+	 * otherwise a parallel call that makes parallel calls of its own can deadlock.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public boolean isMetrics() {
+		return metrics;
+	}
+	
+	public void setCoalesced(String serviceId, boolean coalesced) {
+		if (coalesced) {
+			this.coalesced.add(serviceId);
+		}
+		else {
+			this.coalesced.remove(serviceId);
+		}
+	}
+	
+	public boolean isCoalesced(DefinedService service) {
+		return coalesced.contains(service.getId()) || (service instanceof GlueService && ((GlueService) service).getGlueServiceInterface().isCoalescing());
+	}
+	
+	public SingleFlight getSingleFlight() {
+		return singleFlight;
+	}
+	
+	/**
+	 * From now on calls to the service are collected and dispatched together to the batch service, at most maxSize at a time and waiting at most window milliseconds.
+	 * The batch service must have a single list in both its input and its output, the outputs must be in the order of the inputs.
+	 * Callers in a glue script receive a result that is only joined when it is first read, so calls in a loop are batched as long as the results are used after the loop.
+	 */
+	public void setBatch(String serviceId, String batchServiceId, int maxSize, long window) {
+		DefinedService service = serviceResolver.resolve(serviceId);
+		DefinedService batchService = serviceResolver.resolve(batchServiceId);
+		if (service == null || batchService == null) {
+			throw new IllegalArgumentException("Could not resolve service: " + (service == null ? serviceId : batchServiceId));
+		}
+		batchers.put(serviceId, new ServiceBatcher(this, service, batchService, maxSize, window));
+	}
+	
+	public void removeBatch(String serviceId) {
+		batchers.remove(serviceId);
+	}
+	
+	public ServiceResultCache getResultCache(String serviceId) {
+		return resultCaches.get(serviceId);
+	}
+
+	/**
+	 * Caches the results of calls to the given service, pass null to stop caching.
+	 */
+	public void setResultCache(String serviceId, ServiceResultCache resultCache) {
+		if (resultCache == null) {
+			resultCaches.remove(serviceId);
+		}
+		else {
+			resultCaches.put(serviceId, resultCache);
+		}
+	}
+
+	public void setMetrics(boolean metrics) {
+		this.metrics = metrics;
+	}
+
+	private boolean isAsynchronous(ExecutionContext context) {
+		if (asynchronous) {
+			return true;
+		}
+		Executor current = context.getCurrent();
+		return current != null && current.getContext() != null && current.getContext().getAnnotations() != null && current.getContext().getAnnotations().containsKey(ASYNC_ANNOTATION);
+	}
+	
 	@SuppressWarnings("rawtypes")
 	public List<ParameterDescription> toParameters(ComplexType complexType, boolean allowVarargs) {
 		List<ParameterDescription> parameters = new ArrayList<ParameterDescription>();
 		List<Element<?>> allChildren = new ArrayList<Element<?>>(TypeUtils.getAllChildren(complexType));
-		for (Element<?> child : allChildren) {
+		for (int i = 0; i < allChildren.size(); i++) {
+			Element<?> child = allChildren.get(i);
 			String type = null;
 			if (child.getType() instanceof DefinedType) { 
 				type = ((DefinedType) child.getType()).getId();
@@ -151,7 +329,7 @@ public class ServiceMethodProvider implements MethodProvider {
 			}
 			Value<Integer> maxOccurs = child.getProperty(MaxOccursProperty.getInstance());
 			boolean isList = maxOccurs != null && maxOccurs.getValue() != 1;
-			boolean varargs = allowVarargs && isList && allChildren.indexOf(child) == allChildren.size() - 1;
+			boolean varargs = allowVarargs && isList && i == allChildren.size() - 1;
 			SimpleParameterDescription parameter = new SimpleParameterDescription(child.getName(), null, type, varargs);
 			parameter.setList(isList);
 			parameters.add(parameter);
@@ -172,127 +350,433 @@ public class ServiceMethodProvider implements MethodProvider {
 			// do nothing
 		}
 
-		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@SuppressWarnings("unchecked")
 		@Override
 		public Object evaluate(ExecutionContext context) throws EvaluationException {
-			be.nabu.libs.services.api.ExecutionContext serviceContext = ScriptRuntime.getRuntime() == null ? null : (be.nabu.libs.services.api.ExecutionContext) ScriptRuntime.getRuntime().getContext().get(SERVICE_CONTEXT);
-			CombinedExecutionContext combinedContext = null;
-			if (serviceContext != null) {
-				combinedContext = new CombinedExecutionContextImpl(context, serviceContext);
+			CombinedExecutionContext combinedContext = getCombinedContext(context);
+			MetricInstance metrics = ServiceMethodProvider.this.metrics ? GlueServiceMetrics.getInstance(combinedContext, service.getId()) : null;
+			ServiceInputBinder binder = getBinder(service);
+			// the first part is the method itself
+			Object [] arguments = new Object[binder.getArgumentCount(getParts().size() - 1)];
+			for (int i = 0; i < arguments.length; i++) {
+				arguments[i] = ((Operation<ExecutionContext>) getParts().get(i + 1).getContent()).evaluate(context);
 			}
-			else if (context instanceof CombinedExecutionContext) {
-				combinedContext = (CombinedExecutionContext) context;
+			// the arguments can contain calls of their own (e.g. foo(bar())), those are measured separately
+			long started = metrics == null ? 0 : System.nanoTime();
+			ComplexContent input = binder.bind(arguments);
+			GlueServiceMetrics.duration(metrics, GlueServiceMetrics.CALL_BINDING, started);
+			ServiceResultCache resultCache = resultCaches.isEmpty() || GlueServiceWarmup.isWarmingUp() ? null : resultCaches.get(service.getId());
+			Object cacheKey = resultCache == null ? null : resultCache.newKey(input, combinedContext.getPrincipal());
+			if (cacheKey != null) {
+				ComplexContent cached = resultCache.get(cacheKey, metrics);
+				if (cached != null) {
+					GlueServiceMetrics.increment(metrics, GlueServiceMetrics.CALLS);
+					GlueServiceMetrics.duration(metrics, GlueServiceMetrics.CALL_DURATION, started);
+					return cached;
+				}
 			}
-			else if (context instanceof be.nabu.libs.services.api.ExecutionContext) {
-				combinedContext = new CombinedExecutionContextImpl(context, (be.nabu.libs.services.api.ExecutionContext) context);
+			// glue services apply their own bulkhead, asynchronous calls hold the permit until their result is joined
+			ServiceBulkhead bulkhead = service instanceof GlueService ? null : ServiceBulkhead.get(service.getId());
+			boolean acquired = false;
+			boolean failed = true;
+			try {
+				if (bulkhead != null) {
+					try {
+						bulkhead.acquire(service.getId(), metrics, ServiceDeadline.get(combinedContext));
+					}
+					catch (ServiceException e) {
+						throw new EvaluationException(e);
+					}
+					acquired = true;
+				}
+				Object result = invoke(context, combinedContext, input, metrics);
+				if (result instanceof FutureComplexContent) {
+					// the call is still running, the permit is handed over to the result
+					if (acquired) {
+						((FutureComplexContent) result).releaseWhenDone(bulkhead);
+						acquired = false;
+					}
+				}
+				// asynchronous results are not cached, they may not even be finished
+				else if (cacheKey != null && result instanceof ComplexContent) {
+					resultCache.put(cacheKey, (ComplexContent) result, metrics);
+				}
+				failed = false;
+				return result;
 			}
-			else {
-				combinedContext = new CombinedExecutionContextImpl(context, provider, context.getPrincipal());
-			}
-			int counter = 1;
-			ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
-			List<Element<?>> allChildren = new ArrayList<Element<?>>(TypeUtils.getAllChildren(input.getType()));
-			for (Element<?> element : allChildren) {
-				// if we do not have enough parts, stop
-				if (counter >= getParts().size()) {
-					break;
+			finally {
+				if (acquired) {
+					bulkhead.release();
 				}
-				boolean isVarargs = allChildren.indexOf(element) == allChildren.size() - 1 && element.getType().isList(element.getProperties());
-				int limit = (isVarargs ? getParts().size() - counter : 1);
-				// if this is the last element and it is a list, allow for varargs
-				for (int j = 0; j < limit; j++) {
-					Operation<ExecutionContext> argumentOperation = (Operation<ExecutionContext>) getParts().get(counter).getContent();
-					Object value = argumentOperation.evaluate(context);
-					if (value != null) {
-						if (element.getType().isList(element.getProperties())) {
-							CollectionHandlerProvider collectionHandler = ValueUtils.getValue(CollectionHandlerProviderProperty.getInstance(), element.getProperties());
-							// defaults to a list
-							if (collectionHandler == null) {
-								collectionHandler = CollectionHandlerFactory.getInstance().getHandler().getHandler(List.class);
-							}
-							List<Object> original = null;
-							if (value instanceof Object []) {
-								original = Arrays.asList((Object[]) value);
-							}
-							else if (value instanceof Collection) {
-								original = new ArrayList<Object>((Collection<Object>) value);
-							}
-							else {
-								original = Arrays.asList(value);
-							}
-							// if we are beyond 1, we are in a varargs situation and we want to append to the existing collection
-							if (j >= 1) {
-								value = input.get(element.getName());
-							}
-							else {
-								value = collectionHandler.create(null, original.size());
-							}
-							for (int i = 0; i < original.size(); i++) {
-								if (original.get(i) == null || element.getType() instanceof BeanType && ((BeanType) element.getType()).getBeanClass().isAssignableFrom(original.get(i).getClass())) {
-									collectionHandler.set(value, i + j, original.get(i));
-								}
-								// if we have a complex type, we may need to mask it
-								else if (element.getType() instanceof ComplexType) {
-									collectionHandler.set(value, i + j, cast(original.get(i), (ComplexType) element.getType()));
-								}
-								else {
-									collectionHandler.set(value, i + j, original.get(i));
-								}
+				if (metrics != null) {
+					GlueServiceMetrics.increment(metrics, GlueServiceMetrics.CALLS);
+					if (failed) {
+						GlueServiceMetrics.increment(metrics, GlueServiceMetrics.CALL_ERRORS);
+					}
+					GlueServiceMetrics.duration(metrics, GlueServiceMetrics.CALL_DURATION, started);
+				}
+			}
+		}
+		
+		private Object invoke(final ExecutionContext context, final CombinedExecutionContext combinedContext, final ComplexContent input, MetricInstance metrics) throws EvaluationException {
+			// asynchronous calls return immediately so there is nothing to wait for together
+			// batched calls are not coalesced either, the batch already combines them and its pending result can not be shared
+			if (isCoalesced(service) && (batchers.isEmpty() || !batchers.containsKey(service.getId())) && !(runner != null && FutureComplexContent.getJoiningContext() != null && isAsynchronous(context))) {
+				Object key = singleFlight.newKey(service.getId(), input, combinedContext.getPrincipal());
+				if (key != null) {
+					try {
+						return singleFlight.execute(key, new Callable<ComplexContent>() {
+							@Override
+							public ComplexContent call() throws Exception {
+								return (ComplexContent) invoke(context, combinedContext, input);
 							}
+						}, metrics, ServiceDeadline.get(combinedContext), service.getId());
+					}
+					catch (ServiceDeadline.DeadlineExceededException e) {
+						throw new EvaluationException(e);
+					}
+					catch (ExecutionException e) {
+						if (e.getCause() instanceof EvaluationException) {
+							throw (EvaluationException) e.getCause();
 						}
-						else if (element.getType() instanceof BeanType && ((BeanType) element.getType()).getBeanClass().isAssignableFrom(value.getClass())) {
-							// do nothing
-						}
-						else if (element.getType() instanceof ComplexType) {
-							value = cast(value, (ComplexType) element.getType());
+						else if (e.getCause() instanceof RuntimeException) {
+							throw (RuntimeException) e.getCause();
 						}
-						input.set(element.getName(), value);
+						throw new EvaluationException(e.getCause());
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new EvaluationException(e);
 					}
-					counter++;
 				}
 			}
-			if (runner != null) {
+			return invoke(context, combinedContext, input);
+		}
+		
+		private Object invoke(ExecutionContext context, CombinedExecutionContext combinedContext, ComplexContent input) throws EvaluationException {
+			long deadline = ServiceDeadline.get(combinedContext);
+			try {
+				ServiceDeadline.check(deadline, service.getId());
+			}
+			catch (ServiceException e) {
+				throw new EvaluationException(e);
+			}
+			ServiceBatcher batcher = batchers.isEmpty() ? null : batchers.get(service.getId());
+			if (batcher != null) {
+				Future<ServiceResult> run = batcher.submit(combinedContext, input);
+				Map<String, Object> joiningContext = FutureComplexContent.getJoiningContext();
+				if (joiningContext != null) {
+					FutureComplexContent result = new FutureComplexContent(service.getServiceInterface().getOutputDefinition(), run, deadline, service.getId());
+					FutureComplexContent.register(joiningContext, result);
+					return result;
+				}
+				try {
+					return getOutput(run, deadline, service.getId());
+				}
+				catch (ServiceException e) {
+					throw new EvaluationException(e);
+				}
+			}
+			else if (runner != null) {
 				Future<ServiceResult> run = runner.run(service, combinedContext, input);
+				// we can only defer if there is a script that will eventually join the result
+				Map<String, Object> joiningContext = FutureComplexContent.getJoiningContext();
+				if (joiningContext != null && isAsynchronous(context)) {
+					FutureComplexContent result = new FutureComplexContent(service.getServiceInterface().getOutputDefinition(), run, deadline, service.getId());
+					FutureComplexContent.register(joiningContext, result);
+					return result;
+				}
 				try {
-					ServiceResult result = run.get();
+					ServiceResult result = ServiceDeadline.get(run, deadline, service.getId());
 					if (result.getException() != null) {
 						throw new EvaluationException(result.getException());
 					}
 					return result.getOutput();
 				}
+				catch (ServiceDeadline.DeadlineExceededException e) {
+					throw new EvaluationException(e);
+				}
 				catch (Exception e) {
 					throw new RuntimeException(e);
 				}
 			}
 			else {
 				try {
-					ServiceRuntime serviceRuntime = new ServiceRuntime(service, combinedContext);
-					if (ScriptRuntime.getRuntime() != null) {
-						serviceRuntime.getContext(true).putAll(ScriptRuntime.getRuntime().getContext());
-					}
-					return serviceRuntime.run(input);
+					return runInline(service, combinedContext, input, ScriptRuntime.getRuntime() == null ? null : ScriptRuntime.getRuntime().getContext());
 				}
 				catch (ServiceException e) {
 					throw new EvaluationException(e);
 				}
 			}
 		}
-		
-		@SuppressWarnings({ "rawtypes", "unchecked" })
-		private ComplexContent cast(Object object, ComplexType type) {
-			if (object instanceof ExecutionContext) {
-				return new MaskedContent(new MapContent(type, ((ExecutionContext) object).getPipeline()), type);
+	}
+	
+	public class ParallelServiceOperation extends BaseMethodOperation<ExecutionContext> {
+
+		@Override
+		public void finish() throws ParseException {
+			// do nothing
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Object evaluate(ExecutionContext context) throws EvaluationException {
+			if (getParts().size() < 3) {
+				throw new EvaluationException("Expecting at least a service and a list of inputs");
 			}
-			else if (object instanceof Map) {
-				return new MaskedContent(new MapContent(type, (Map) object), type);
+			Object target = ((Operation<ExecutionContext>) getParts().get(1).getContent()).evaluate(context);
+			DefinedService service = target instanceof DefinedService ? (DefinedService) target : resolutionCache.resolve(target == null ? null : target.toString());
+			if (service == null) {
+				throw new EvaluationException("Could not resolve service: " + target);
+			}
+			Object inputs = ((Operation<ExecutionContext>) getParts().get(2).getContent()).evaluate(context);
+			List<Object> list;
+			if (inputs == null) {
+				list = new ArrayList<Object>();
+			}
+			else if (inputs instanceof Object[]) {
+				list = Arrays.asList((Object[]) inputs);
+			}
+			else if (inputs instanceof Collection) {
+				list = new ArrayList<Object>((Collection<Object>) inputs);
+			}
+			else if (inputs instanceof Iterable) {
+				list = new ArrayList<Object>();
+				for (Object input : (Iterable<Object>) inputs) {
+					list.add(input);
+				}
 			}
 			else {
-				if (!(object instanceof ComplexContent)) {
-					object = new BeanInstance(object);
+				list = Arrays.asList(inputs);
+			}
+			Object concurrency = getParts().size() > 3 ? ((Operation<ExecutionContext>) getParts().get(3).getContent()).evaluate(context) : null;
+			try {
+				int max = maxConcurrency;
+				if (concurrency instanceof Number) {
+					max = ((Number) concurrency).intValue();
+				}
+				else if (concurrency != null) {
+					max = new BigDecimal(concurrency.toString().trim()).intValue();
+				}
+				return parallel(service, list, max, context);
+			}
+			catch (ServiceException e) {
+				throw new EvaluationException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Calls the service once for every input, with at most maxConcurrency calls in flight at any time.
+	 * The outputs are returned in the same order as the inputs. If no runner is configured, the calls are executed on a shared pool that grows as needed.
+	 * A bulkhead registered for the service applies to every call, a permit is held until the output of the call is collected.
+	 */
+	public List<ComplexContent> parallel(final DefinedService service, List<?> inputs, int maxConcurrency, ExecutionContext context) throws ServiceException {
+		if (maxConcurrency <= 0) {
+			maxConcurrency = 1;
+		}
+		CombinedExecutionContext combinedContext = getCombinedContext(context);
+		long deadline = ServiceDeadline.get(combinedContext);
+		ComplexType inputDefinition = service.getServiceInterface().getInputDefinition();
+		final Map<String, Object> scriptContext = ScriptRuntime.getRuntime() == null ? null : ScriptRuntime.getRuntime().getContext();
+		// glue services apply their own bulkhead when they are executed
+		ServiceBulkhead bulkhead = service instanceof GlueService ? null : ServiceBulkhead.get(service.getId());
+		MetricInstance metrics = bulkhead != null && this.metrics ? GlueServiceMetrics.getInstance(combinedContext, service.getId()) : null;
+		List<Future<ServiceResult>> futures = new ArrayList<Future<ServiceResult>>();
+		List<ComplexContent> outputs = new ArrayList<ComplexContent>();
+		// every call that was started but not yet collected holds a permit
+		int collected = 0;
+		boolean succeeded = false;
+		try {
+			for (Object item : inputs) {
+				final ComplexContent input = item == null ? inputDefinition.newInstance() : (item instanceof ComplexContent && ((ComplexContent) item).getType().equals(inputDefinition) ? (ComplexContent) item : cast(item, inputDefinition));
+				// every call gets its own glue view but they all share the security and transaction context of the caller
+				final CombinedExecutionContext callContext = new CombinedExecutionContextImpl(context, combinedContext);
+				// sliding window: wait for the oldest call to finish before we start a new one
+				if (futures.size() >= collected + maxConcurrency) {
+					outputs.add(collect(futures.get(collected++), deadline, service.getId(), bulkhead));
+				}
+				if (bulkhead != null) {
+					bulkhead.acquire(service.getId(), metrics, deadline);
+				}
+				boolean started = false;
+				try {
+					if (runner != null) {
+						futures.add(runner.run(service, callContext, input));
+					}
+					else {
+						futures.add(getExecutor().submit(new Callable<ServiceResult>() {
+							@Override
+							public ServiceResult call() {
+								try {
+									return newResult(runInline(service, callContext, input, scriptContext), null);
+								}
+								catch (ServiceException e) {
+									return newResult(null, e);
+								}
+							}
+						}));
+					}
+					started = true;
+				}
+				finally {
+					if (!started && bulkhead != null) {
+						bulkhead.release();
+					}
+				}
+			}
+			while (collected < futures.size()) {
+				outputs.add(collect(futures.get(collected++), deadline, service.getId(), bulkhead));
+			}
+			succeeded = true;
+			return outputs;
+		}
+		finally {
+			if (!succeeded) {
+				for (int i = collected; i < futures.size(); i++) {
+					futures.get(i).cancel(true);
+					if (bulkhead != null) {
+						bulkhead.release();
+					}
 				}
-				ComplexContent cast = Structure.cast((ComplexContent) object, type);
-				return cast == null ? new MaskedContent((ComplexContent) object, type) : cast;
 			}
 		}
 	}
+	
+	private static ComplexContent collect(Future<ServiceResult> future, long deadline, String serviceId, ServiceBulkhead bulkhead) throws ServiceException {
+		try {
+			return getOutput(future, deadline, serviceId);
+		}
+		finally {
+			// we are no longer waiting for it (e.g. because we were interrupted), don't let it run without a permit
+			if (!future.isDone()) {
+				future.cancel(true);
+			}
+			if (bulkhead != null) {
+				bulkhead.release();
+			}
+		}
+	}
+	
+	private static ComplexContent getOutput(Future<ServiceResult> future, long deadline, String serviceId) throws ServiceException {
+		try {
+			ServiceResult result = ServiceDeadline.get(future, deadline, serviceId);
+			if (result.getException() != null) {
+				throw result.getException() instanceof ServiceException ? (ServiceException) result.getException() : new ServiceException(result.getException());
+			}
+			return result.getOutput();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException(e);
+		}
+		catch (ExecutionException e) {
+			throw new ServiceException(e.getCause());
+		}
+	}
+	
+	static ServiceResult newResult(final ComplexContent output, final ServiceException exception) {
+		return new ServiceResult() {
+			@Override
+			public ComplexContent getOutput() {
+				return output;
+			}
+			@Override
+			public ServiceException getException() {
+				return exception;
+			}
+		};
+	}
+	
+	private ExecutorService getExecutor() {
+		if (executor == null) {
+			synchronized(this) {
+				if (executor == null) {
+					// the calls mostly wait on I/O so the pool grows with demand, the sliding window of each parallel call bounds how much it takes
+					// nothing is ever queued so a call on the pool that makes parallel calls of its own never waits for work that is stuck behind it
+					executor = Executors.newCachedThreadPool(new ThreadFactory() {
+						private AtomicInteger counter = new AtomicInteger();
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "glue-services-parallel-" + counter.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+			}
+		}
+		return executor;
+	}
+	
+	ComplexContent runInline(DefinedService service, CombinedExecutionContext combinedContext, ComplexContent input, Map<String, Object> scriptContext) throws ServiceException {
+		ServiceRuntime serviceRuntime = new ServiceRuntime(service, combinedContext);
+		// the nested call sees the entire context of the script but only its own changes are stored
+		if (scriptContext != null) {
+			serviceRuntime.setContext(new LayeredContextMap(scriptContext));
+		}
+		return serviceRuntime.run(input);
+	}
+	
+	private CombinedExecutionContext getCombinedContext(ExecutionContext context) {
+		be.nabu.libs.services.api.ExecutionContext serviceContext = ScriptRuntime.getRuntime() == null ? null : (be.nabu.libs.services.api.ExecutionContext) ScriptRuntime.getRuntime().getContext().get(SERVICE_CONTEXT);
+		if (serviceContext != null) {
+			// most of the time we are already running in exactly this combination
+			if (context instanceof CombinedExecutionContextImpl && ((CombinedExecutionContextImpl) context).getServiceExecutionContext() == serviceContext) {
+				return (CombinedExecutionContext) context;
+			}
+			return new CombinedExecutionContextImpl(context, serviceContext);
+		}
+		else if (context instanceof CombinedExecutionContext) {
+			return (CombinedExecutionContext) context;
+		}
+		else if (context instanceof be.nabu.libs.services.api.ExecutionContext) {
+			return new CombinedExecutionContextImpl(context, (be.nabu.libs.services.api.ExecutionContext) context);
+		}
+		else {
+			return new CombinedExecutionContextImpl(context, provider, context.getPrincipal());
+		}
+	}
+	
+	/**
+	 * The binder is built once per service and rebuilt if the input definition of the service changes.
+	 */
+	public ServiceInputBinder getBinder(DefinedService service) {
+		ComplexType definition = service.getServiceInterface().getInputDefinition();
+		ServiceInputBinder binder = binders.get(service.getId());
+		if (binder == null || binder.getDefinition() != definition) {
+			binder = new ServiceInputBinder(this, definition);
+			binders.put(service.getId(), binder);
+		}
+		return binder;
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	ComplexContent cast(Object object, ComplexType type) {
+		if (object instanceof ExecutionContext) {
+			object = ((ExecutionContext) object).getPipeline();
+		}
+		// a pipeline that is still a view on untouched content can be passed along directly
+		if (object instanceof ComplexContentMap && ((ComplexContentMap) object).isUnmodified()) {
+			object = ((ComplexContentMap) object).getContent();
+		}
+		if (object instanceof Map) {
+			return new MaskedContent(new MapContent(type, (Map) object), type);
+		}
+		else {
+			if (!(object instanceof ComplexContent)) {
+				object = new BeanInstance(object);
+			}
+			return ConversionCache.getInstance().cast((ComplexContent) object, type);
+		}
+	}
+
+	private static class AvailableMethods {
+		private final List<MethodDescription> catalogue, methods;
+
+		public AvailableMethods(List<MethodDescription> catalogue, List<MethodDescription> methods) {
+			this.catalogue = catalogue;
+			this.methods = methods;
+		}
+	}
 }
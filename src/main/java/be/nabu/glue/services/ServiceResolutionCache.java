@@ -0,0 +1,102 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.DefinedServiceResolver;
+
+/**
+ * Remembers both successful and failed service lookups.
+ * Most names that are probed are not services at all so the negative results are at least as important as the positive ones.
+ */
+public class ServiceResolutionCache {
+
+	private static final Object NOT_FOUND = new Object();
+
+	private DefinedServiceResolver resolver;
+	private int maxSize;
+	private ConcurrentMap<String, Object> resolved = new ConcurrentHashMap<String, Object>();
+	// the ids in the order they were added, it can contain ids that were invalidated in the meantime
+	private ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<String>();
+	private AtomicInteger queued = new AtomicInteger();
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+	public ServiceResolutionCache(DefinedServiceResolver resolver, int maxSize) {
+		this.resolver = resolver;
+		this.maxSize = maxSize;
+	}
+
+	public DefinedService resolve(String id) {
+		if (id == null) {
+			return null;
+		}
+		Object result = resolved.get(id);
+		if (result != null) {
+			hits.incrementAndGet();
+		}
+		else {
+			misses.incrementAndGet();
+			result = resolver.resolve(id);
+			if (result == null) {
+				result = NOT_FOUND;
+			}
+			if (resolved.put(id, result) == null) {
+				order.offer(id);
+				queued.incrementAndGet();
+			}
+			// evict the oldest entries rather than blocking everyone to maintain access order
+			// we also trim when the queue holds too many invalidated ids, this may evict a live entry a bit early but keeps the queue bounded
+			String oldest;
+			while ((resolved.size() > maxSize || queued.get() > maxSize * 2) && (oldest = order.poll()) != null) {
+				queued.decrementAndGet();
+				resolved.remove(oldest);
+			}
+		}
+		return result == NOT_FOUND ? null : (DefinedService) result;
+	}
+
+	public void invalidate(String...ids) {
+		for (String id : ids) {
+			resolved.remove(id);
+		}
+	}
+
+	public void invalidateAll() {
+		resolved.clear();
+		order.clear();
+		queued.set(0);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int getSize() {
+		return resolved.size();
+	}
+}
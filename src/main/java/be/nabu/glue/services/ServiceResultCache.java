@@ -0,0 +1,313 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.metrics.api.MetricInstance;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Remembers the output of a service that only depends on its input.
+ * The key is built from the structure of the input, inputs that contain values we can not compare (streams, arbitrary objects,...) are never cached.
+ * The output is copied when it is stored and again for every hit so callers are free to modify what they get.
+ */
+public class ServiceResultCache {
+
+	// the maximum depth of the input we are willing to walk, this also protects against cyclic structures
+	private static final int MAX_DEPTH = 16;
+	
+	private long timeToLive;
+	private int maxSize;
+	private boolean principalAware;
+	private ConcurrentMap<Object, CachedResult> results = new ConcurrentHashMap<Object, CachedResult>();
+	// all results in the order they were added, because every result lives equally long this is also the order in which they expire
+	// the queue can contain results that were already replaced or removed, they are skipped when they reach the head
+	private ConcurrentLinkedQueue<CachedResult> queue = new ConcurrentLinkedQueue<CachedResult>();
+	private AtomicInteger queued = new AtomicInteger();
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	/**
+	 * @param timeToLive in milliseconds, 0 or less means results never expire
+	 * @param principalAware whether results are cached per principal, this is necessary if the output depends on who is asking
+	 */
+	public ServiceResultCache(long timeToLive, int maxSize, boolean principalAware) {
+		this.timeToLive = timeToLive;
+		this.maxSize = maxSize;
+		this.principalAware = principalAware;
+	}
+
+	/**
+	 * Returns null if the input can not be used as a key.
+	 */
+	public Object newKey(ComplexContent input, Principal principal) {
+		Object key = toKey(input, 0);
+		if (key == null && input != null) {
+			return null;
+		}
+		return principalAware ? Arrays.asList(key, principal == null ? null : principal.getName()) : key;
+	}
+
+	public ComplexContent get(Object key, MetricInstance metrics) {
+		CachedResult result = results.get(key);
+		if (result != null && result.isExpired()) {
+			if (results.remove(key, result)) {
+				evictions.incrementAndGet();
+				GlueServiceMetrics.increment(metrics, GlueServiceMetrics.CACHE_EVICTIONS);
+			}
+			result = null;
+		}
+		if (result == null) {
+			misses.incrementAndGet();
+			GlueServiceMetrics.increment(metrics, GlueServiceMetrics.CACHE_MISSES);
+			return null;
+		}
+		hits.incrementAndGet();
+		GlueServiceMetrics.increment(metrics, GlueServiceMetrics.CACHE_HITS);
+		return copy(result.output);
+	}
+
+	public void put(Object key, ComplexContent output, MetricInstance metrics) {
+		CachedResult result = new CachedResult(key, copy(output), timeToLive > 0 ? System.currentTimeMillis() + timeToLive : Long.MAX_VALUE);
+		results.put(key, result);
+		queue.offer(result);
+		queued.incrementAndGet();
+		// evict the oldest results rather than blocking everyone to maintain access order, this also gets rid of the expired ones first
+		// we also trim when the queue holds too many stale results, this may evict a live result a bit early but keeps the queue bounded
+		long now = System.currentTimeMillis();
+		CachedResult oldest;
+		while ((oldest = queue.peek()) != null && (results.size() > maxSize || queued.get() > maxSize * 2 || oldest.isExpired(now))) {
+			if (queue.remove(oldest)) {
+				queued.decrementAndGet();
+				if (results.remove(oldest.key, oldest)) {
+					evict(metrics);
+				}
+			}
+		}
+	}
+
+	private void evict(MetricInstance metrics) {
+		evictions.incrementAndGet();
+		GlueServiceMetrics.increment(metrics, GlueServiceMetrics.CACHE_EVICTIONS);
+	}
+
+	public void invalidateAll() {
+		results.clear();
+		queue.clear();
+		queued.set(0);
+	}
+
+	public boolean isPrincipalAware() {
+		return principalAware;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public int getSize() {
+		return results.size();
+	}
+
+	/**
+	 * A structural key for the given value or null if it contains values that can not be compared.
+	 */
+	static Object toKey(Object value) {
+		return toKey(value, 0);
+	}
+
+	/**
+	 * A copy of the given content that can be modified without affecting the original.
+	 * Complex children, lists, arrays and mutable simple values are copied, other values are assumed to be immutable.
+	 */
+	static ComplexContent copy(ComplexContent content) {
+		return (ComplexContent) copy(content, 0);
+	}
+	
+	private static Object copy(Object value, int depth) {
+		if (value == null || depth > MAX_DEPTH) {
+			return value;
+		}
+		else if (value instanceof ComplexContent) {
+			ComplexContent content = (ComplexContent) value;
+			ComplexContent copy = content.getType().newInstance();
+			for (Element<?> element : TypeUtils.getAllChildren(content.getType())) {
+				Object child = content.get(element.getName());
+				if (child != null) {
+					copy.set(element.getName(), copy(child, depth + 1));
+				}
+			}
+			return copy;
+		}
+		else if (value instanceof Collection) {
+			List<Object> list = new ArrayList<Object>(((Collection<?>) value).size());
+			for (Object item : (Collection<?>) value) {
+				list.add(copy(item, depth + 1));
+			}
+			return list;
+		}
+		else if (value instanceof Map) {
+			Map<Object, Object> map = new HashMap<Object, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				map.put(entry.getKey(), copy(entry.getValue(), depth + 1));
+			}
+			return map;
+		}
+		else if (value instanceof byte[]) {
+			return ((byte[]) value).clone();
+		}
+		else if (value instanceof Object[]) {
+			Object[] array = ((Object[]) value).clone();
+			for (int i = 0; i < array.length; i++) {
+				array[i] = copy(array[i], depth + 1);
+			}
+			return array;
+		}
+		else if (value instanceof Date) {
+			return ((Date) value).clone();
+		}
+		return value;
+	}
+
+	private static Object toKey(Object value, int depth) {
+		if (value == null) {
+			return Null.INSTANCE;
+		}
+		else if (depth > MAX_DEPTH) {
+			return null;
+		}
+		else if (value instanceof String || value instanceof Boolean || value instanceof Character || value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte || value instanceof Double || value instanceof Float || value instanceof BigInteger
+				|| value instanceof UUID || value instanceof URI || value instanceof Enum || value instanceof Class) {
+			return value;
+		}
+		// equals of big decimal takes the scale into account
+		else if (value instanceof BigDecimal) {
+			return ((BigDecimal) value).stripTrailingZeros();
+		}
+		// dates are mutable
+		else if (value instanceof Date) {
+			return ((Date) value).getTime();
+		}
+		else if (value instanceof byte[]) {
+			return ByteBuffer.wrap(((byte[]) value).clone());
+		}
+		else if (value instanceof Object[]) {
+			return toKey(Arrays.asList((Object[]) value), depth);
+		}
+		else if (value instanceof Collection) {
+			List<Object> list = new ArrayList<Object>(((Collection<?>) value).size());
+			for (Object item : (Collection<?>) value) {
+				Object key = toKey(item, depth + 1);
+				if (key == null) {
+					return null;
+				}
+				list.add(key);
+			}
+			return list;
+		}
+		else if (value instanceof Map) {
+			Map<Object, Object> map = new HashMap<Object, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				Object key = toKey(entry.getKey(), depth + 1);
+				Object child = toKey(entry.getValue(), depth + 1);
+				if (key == null || child == null) {
+					return null;
+				}
+				map.put(key, child);
+			}
+			return map;
+		}
+		// we don't know how to compare anything else
+		else if (!(value instanceof ComplexContent)) {
+			return null;
+		}
+		ComplexContent content = (ComplexContent) value;
+		List<Object> list = new ArrayList<Object>();
+		// the type itself is part of the key, two different types with the same values are not the same input
+		list.add(content.getType());
+		for (Element<?> element : TypeUtils.getAllChildren(content.getType())) {
+			Object key = toKey(content.get(element.getName()), depth + 1);
+			if (key == null) {
+				return null;
+			}
+			list.add(key);
+		}
+		return list;
+	}
+
+	// a placeholder for null that can be stored in a list key
+	private static final class Null {
+		private static final Null INSTANCE = new Null();
+	}
+
+	private static class CachedResult {
+		private Object key;
+		private ComplexContent output;
+		private long expires;
+
+		public CachedResult(Object key, ComplexContent output, long expires) {
+			this.key = key;
+			this.output = output;
+			this.expires = expires;
+		}
+
+		public boolean isExpired() {
+			return expires != Long.MAX_VALUE && isExpired(System.currentTimeMillis());
+		}
+
+		public boolean isExpired(long now) {
+			return now > expires;
+		}
+	}
+}
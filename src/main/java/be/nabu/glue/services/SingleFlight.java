@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.glue.services.ServiceDeadline.DeadlineExceededException;
+import be.nabu.libs.metrics.api.MetricInstance;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * Concurrent calls to the same service with the same input share a single execution, everyone gets the same output or exception.
+ * The principal is part of the key so callers never see results that were calculated for someone else.
+ * Every caller, including the one that ran the call, gets its own copy of the shared output so they can modify it independently.
+ */
+public class SingleFlight {
+
+	private ConcurrentMap<Object, Flight> inFlight = new ConcurrentHashMap<Object, Flight>();
+	private AtomicLong executions = new AtomicLong(), shared = new AtomicLong();
+
+	/**
+	 * Returns null if the input can not be used to identify the call.
+	 */
+	public Object newKey(String serviceId, ComplexContent input, Principal principal) {
+		Object key = ServiceResultCache.toKey(input);
+		return key == null ? null : Arrays.asList(serviceId, key, principal == null ? null : principal.getName());
+	}
+
+	public ComplexContent execute(Object key, Callable<ComplexContent> callable, MetricInstance metrics) throws ExecutionException, InterruptedException {
+		try {
+			return execute(key, callable, metrics, 0, null);
+		}
+		catch (DeadlineExceededException e) {
+			// can not happen without a deadline
+			throw new ExecutionException(e);
+		}
+	}
+	
+	/**
+	 * Runs the callable on the current thread unless an identical call is already in flight, in which case we wait for that one but no longer than the deadline.
+	 * A caller that gives up does not cancel the shared execution, the others may have more time.
+	 * If the callable fails, the exception is available as the cause of the execution exception.
+	 */
+	public ComplexContent execute(Object key, Callable<ComplexContent> callable, MetricInstance metrics, long deadline, String serviceId) throws ExecutionException, InterruptedException, DeadlineExceededException {
+		Flight flight = new Flight(callable);
+		Flight existing = inFlight.putIfAbsent(key, flight);
+		// a recursive call with the same input would otherwise wait for itself
+		if (existing != null && existing.owner == Thread.currentThread()) {
+			try {
+				return callable.call();
+			}
+			catch (Exception e) {
+				throw new ExecutionException(e);
+			}
+		}
+		else if (existing != null) {
+			shared.incrementAndGet();
+			GlueServiceMetrics.increment(metrics, GlueServiceMetrics.COALESCED_CALLS);
+			return ServiceResultCache.copy(ServiceDeadline.get(existing.task, deadline, serviceId, false));
+		}
+		executions.incrementAndGet();
+		try {
+			flight.task.run();
+		}
+		finally {
+			inFlight.remove(key, flight);
+		}
+		// the others may still be copying the original
+		return ServiceResultCache.copy(flight.task.get());
+	}
+
+	public long getExecutions() {
+		return executions.get();
+	}
+
+	public long getShared() {
+		return shared.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	private static class Flight {
+		private FutureTask<ComplexContent> task;
+		private Thread owner = Thread.currentThread();
+
+		public Flight(Callable<ComplexContent> callable) {
+			this.task = new FutureTask<ComplexContent>(callable);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import be.nabu.glue.services.GlueServiceBindingPlan.StreamingOutput;
+import be.nabu.libs.types.api.CollectionHandlerProvider;
+
+/**
+ * Allows the types library to handle the lazy list outputs of streaming glue services.
+ * The output can only be read, iterating over it pulls the items from the script as they are needed and fails once the configured limit is exceeded.
+ * Anything that needs random access or the size resolves the entire output first, this is subject to the same limit.
+ */
+public class StreamingOutputCollectionHandler implements CollectionHandlerProvider<StreamingOutput, Integer> {
+
+	@Override
+	public StreamingOutput create(Class<? extends StreamingOutput> definitionClass, int size) {
+		throw new UnsupportedOperationException("Streamed outputs can not be created");
+	}
+
+	@Override
+	public StreamingOutput set(StreamingOutput collection, Integer index, Object value) {
+		throw new UnsupportedOperationException("Streamed outputs are read only");
+	}
+
+	@Override
+	public Object get(StreamingOutput collection, Integer index) {
+		int current = 0;
+		for (Object item : collection) {
+			if (current++ == index) {
+				return item;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public StreamingOutput delete(StreamingOutput collection, Integer index) {
+		throw new UnsupportedOperationException("Streamed outputs are read only");
+	}
+
+	@Override
+	public Class<StreamingOutput> getCollectionClass() {
+		return StreamingOutput.class;
+	}
+
+	@Override
+	public Class<Integer> getIndexClass() {
+		return Integer.class;
+	}
+
+	@Override
+	public Collection<Integer> getIndexes(StreamingOutput collection) {
+		int size = getAsCollection(collection).size();
+		List<Integer> indexes = new ArrayList<Integer>(size);
+		for (int i = 0; i < size; i++) {
+			indexes.add(i);
+		}
+		return indexes;
+	}
+
+	@Override
+	public Collection<?> getAsCollection(StreamingOutput collection) {
+		List<Object> list = new ArrayList<Object>();
+		for (Object item : collection) {
+			list.add(item);
+		}
+		return list;
+	}
+
+	@Override
+	public Iterable<?> getAsIterable(StreamingOutput collection) {
+		return collection;
+	}
+
+	@Override
+	public Integer unmarshalIndex(String index, StreamingOutput collection) {
+		return Integer.parseInt(index);
+	}
+
+	@Override
+	public String marshalIndex(Integer index) {
+		return index.toString();
+	}
+
+	@Override
+	public Class<?> getComponentType(Type type) {
+		return Object.class;
+	}
+
+	@Override
+	public boolean isCompatible(Class<?> targetClass) {
+		return StreamingOutput.class.isAssignableFrom(targetClass);
+	}
+}
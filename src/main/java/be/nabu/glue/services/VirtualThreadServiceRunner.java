@@ -0,0 +1,142 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.glue.utils.ScriptRuntime;
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.services.api.ServiceRunner;
+import be.nabu.libs.services.api.ServiceRuntimeTracker;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * Runs every service on its own virtual thread so services that mostly wait on I/O don't tie up platform threads.
+ * The glue context and the runtime tracker of the caller are carried over to the new thread, everything else that is thread bound (the script runtime, the root variable registration,...) is set up anew by the service itself.
+ * On a jvm without virtual threads this falls back to an unbounded pool of daemon threads.
+ */
+public class VirtualThreadServiceRunner implements ServiceRunner {
+
+	private static Logger logger = LoggerFactory.getLogger(VirtualThreadServiceRunner.class);
+	
+	// a method handle rather than reflection, this is checked on every pooled invocation
+	private static final MethodHandle isVirtual = findIsVirtual();
+	
+	private static MethodHandle findIsVirtual() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+		}
+		catch (Exception e) {
+			// not available
+			return null;
+		}
+	}
+	
+	private ExecutorService executor;
+	
+	public VirtualThreadServiceRunner() {
+		this(newExecutor());
+	}
+	
+	public VirtualThreadServiceRunner(ExecutorService executor) {
+		this.executor = executor;
+	}
+	
+	@Override
+	public Future<ServiceResult> run(final Service service, final ExecutionContext executionContext, final ComplexContent input) {
+		// capture the state of the calling thread, the glue context is copied once because the caller keeps modifying it while we run
+		ScriptRuntime scriptRuntime = ScriptRuntime.getRuntime();
+		final Map<String, Object> scriptContext = scriptRuntime == null ? null : new HashMap<String, Object>(scriptRuntime.getContext());
+		ServiceRuntime serviceRuntime = ServiceRuntime.getRuntime();
+		final ServiceRuntimeTracker tracker = serviceRuntime == null ? null : serviceRuntime.getRuntimeTracker();
+		return executor.submit(new Callable<ServiceResult>() {
+			@Override
+			public ServiceResult call() {
+				ServiceRuntime runtime = new ServiceRuntime(service, executionContext);
+				if (tracker != null) {
+					runtime.setRuntimeTracker(tracker);
+				}
+				// the snapshot belongs to this call alone so it can be used as the context directly
+				if (scriptContext != null) {
+					runtime.setContext(scriptContext);
+				}
+				try {
+					return ServiceMethodProvider.newResult(runtime.run(input), null);
+				}
+				catch (ServiceException e) {
+					return ServiceMethodProvider.newResult(null, e);
+				}
+			}
+		});
+	}
+	
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+	
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	/**
+	 * Whether the given thread is a virtual thread, always false on a jvm that does not support them.
+	 */
+	public static boolean isVirtual(Thread thread) {
+		try {
+			return isVirtual != null && (boolean) isVirtual.invokeExact(thread);
+		}
+		catch (Throwable e) {
+			return false;
+		}
+	}
+	
+	private static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception e) {
+			logger.warn("Virtual threads are not available, falling back to platform threads");
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				private AtomicInteger counter = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "glue-services-runner-" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+}
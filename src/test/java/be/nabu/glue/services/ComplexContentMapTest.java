@@ -0,0 +1,141 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.structure.Structure;
+
+public class ComplexContentMapTest extends TestCase {
+
+	private Structure type;
+	private ComplexContent content;
+	
+	@Override
+	protected void setUp() {
+		type = new Structure();
+		type.setName("test");
+		type.add(new SimpleElementImpl<String>("name", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), type));
+		type.add(new SimpleElementImpl<Integer>("value", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), type));
+		content = type.newInstance();
+		content.set("name", "original");
+		content.set("value", 1);
+	}
+	
+	public void testGet() {
+		ComplexContentMap map = new ComplexContentMap(content);
+		assertEquals("original", map.get("name"));
+		assertEquals(1, map.get("value"));
+		assertNull(map.get("unknown"));
+		assertTrue(map.containsKey("name"));
+		assertFalse(map.containsKey("unknown"));
+		assertEquals(2, map.size());
+		assertTrue(map.isUnmodified());
+	}
+	
+	public void testPut() {
+		ComplexContentMap map = new ComplexContentMap(content);
+		assertEquals("original", map.put("name", "changed"));
+		assertNull(map.put("extra", "added"));
+		assertEquals("changed", map.get("name"));
+		assertEquals("added", map.get("extra"));
+		assertEquals(3, map.size());
+		assertFalse(map.isUnmodified());
+		// the content itself is never touched
+		assertEquals("original", content.get("name"));
+	}
+	
+	public void testRemove() {
+		ComplexContentMap map = new ComplexContentMap(content);
+		assertEquals("original", map.remove("name"));
+		assertNull(map.get("name"));
+		assertFalse(map.containsKey("name"));
+		assertEquals(1, map.size());
+		assertFalse(map.isUnmodified());
+		// putting it back after a removal makes it visible again
+		map.put("name", "back");
+		assertEquals("back", map.get("name"));
+		assertEquals("original", content.get("name"));
+	}
+	
+	public void testClear() {
+		ComplexContentMap map = new ComplexContentMap(content);
+		map.put("extra", "added");
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get("name"));
+		assertNull(map.get("extra"));
+		assertFalse(map.isUnmodified());
+		assertEquals("original", content.get("name"));
+	}
+	
+	public void testEntrySetRemove() {
+		ComplexContentMap map = new ComplexContentMap(content);
+		map.put("extra", "added");
+		Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Object> entry = iterator.next();
+			if (entry.getKey().equals("name") || entry.getKey().equals("extra")) {
+				iterator.remove();
+			}
+		}
+		assertEquals(1, map.size());
+		assertEquals(Arrays.asList("value"), Arrays.asList(map.keySet().toArray()));
+		try {
+			map.entrySet().iterator().remove();
+			fail("Removing before next() should fail");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+	}
+	
+	public void testEntrySetValue() {
+		ComplexContentMap map = new ComplexContentMap(content);
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			if (entry.getKey().equals("value")) {
+				entry.setValue(2);
+			}
+		}
+		assertEquals(2, map.get("value"));
+		assertEquals(1, content.get("value"));
+	}
+	
+	public void testUnmodifiedHandoff() {
+		ServiceMethodProvider provider = new ServiceMethodProvider(null, null);
+		ComplexContentMap map = new ComplexContentMap(content);
+		// untouched content is passed along as is
+		assertSame(content, provider.cast(map, type));
+		
+		map.put("name", "changed");
+		ComplexContent cast = provider.cast(map, type);
+		assertNotSame(content, cast);
+		assertEquals("changed", cast.get("name"));
+		assertEquals(1, cast.get("value"));
+		
+		// reverting the change does not bring back the handoff, the overlay is still there
+		map.remove("name");
+		assertNotSame(content, provider.cast(map, type));
+	}
+}
@@ -0,0 +1,94 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+public class GlueServiceBindingPlanTest extends TestCase {
+
+	private Structure item, other;
+	private GlueServiceBindingPlan plan;
+	
+	@Override
+	protected void setUp() {
+		item = newItem("item");
+		other = newItem("other");
+		Structure output = new Structure();
+		output.setName("output");
+		output.add(new ComplexElementImpl("items", item, output, new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+		plan = new GlueServiceBindingPlan(new Structure(), output);
+	}
+	
+	public void testListIsReused() {
+		List<ComplexContent> items = new ArrayList<ComplexContent>();
+		items.add(newContent(item, "first"));
+		items.add(newContent(item, "second"));
+		ComplexContent output = plan.mapOutput(pipeline(items));
+		// every item already has the correct type so nothing needs to be copied
+		assertSame(items, output.get("items"));
+	}
+	
+	public void testListIsCopiedWhenItemsAreMasked() {
+		List<ComplexContent> items = new ArrayList<ComplexContent>();
+		ComplexContent first = newContent(item, "first");
+		ComplexContent second = newContent(other, "second");
+		items.add(first);
+		items.add(second);
+		ComplexContent output = plan.mapOutput(pipeline(items));
+		List<?> mapped = (List<?>) output.get("items");
+		assertNotSame(items, mapped);
+		assertEquals(2, mapped.size());
+		// the items before the first one that needs masking are copied as is
+		assertSame(first, mapped.get(0));
+		assertEquals(item, ((ComplexContent) mapped.get(1)).getType());
+		assertEquals("second", ((ComplexContent) mapped.get(1)).get("name"));
+		// the original list is left alone
+		assertSame(second, items.get(1));
+	}
+	
+	private static Map<String, Object> pipeline(List<ComplexContent> items) {
+		Map<String, Object> pipeline = new HashMap<String, Object>();
+		pipeline.put("items", items);
+		return pipeline;
+	}
+	
+	private static ComplexContent newContent(Structure type, String name) {
+		ComplexContent content = type.newInstance();
+		content.set("name", name);
+		return content;
+	}
+	
+	private static Structure newItem(String name) {
+		Structure structure = new Structure();
+		structure.setName(name);
+		structure.add(new SimpleElementImpl<String>("name", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), structure));
+		return structure;
+	}
+}
@@ -0,0 +1,117 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class LayeredContextMapTest extends TestCase {
+
+	private Map<String, Object> parent;
+	
+	@Override
+	protected void setUp() {
+		parent = new HashMap<String, Object>();
+		parent.put("a", "parent-a");
+		parent.put("b", "parent-b");
+		parent.put("empty", null);
+	}
+	
+	public void testGet() {
+		LayeredContextMap map = new LayeredContextMap(parent);
+		assertEquals("parent-a", map.get("a"));
+		assertNull(map.get("unknown"));
+		assertTrue(map.containsKey("empty"));
+		assertFalse(map.containsKey("unknown"));
+		assertEquals(3, map.size());
+		assertEquals(parent, map);
+	}
+	
+	public void testPut() {
+		LayeredContextMap map = new LayeredContextMap(parent);
+		assertEquals("parent-a", map.put("a", "local-a"));
+		assertNull(map.put("c", "local-c"));
+		map.put("b", null);
+		assertEquals("local-a", map.get("a"));
+		assertEquals("local-c", map.get("c"));
+		// a local null hides the parent value
+		assertNull(map.get("b"));
+		assertTrue(map.containsKey("b"));
+		assertEquals(4, map.size());
+		// the parent is never touched
+		assertEquals("parent-a", parent.get("a"));
+		assertFalse(parent.containsKey("c"));
+	}
+	
+	public void testRemove() {
+		LayeredContextMap map = new LayeredContextMap(parent);
+		map.put("a", "local-a");
+		assertEquals("local-a", map.remove("a"));
+		assertNull(map.get("a"));
+		assertFalse(map.containsKey("a"));
+		assertEquals(2, map.size());
+		assertEquals("parent-a", parent.get("a"));
+		// putting it back after a removal makes it visible again
+		map.put("a", "again");
+		assertEquals("again", map.get("a"));
+	}
+	
+	public void testClear() {
+		LayeredContextMap map = new LayeredContextMap(parent);
+		map.put("c", "local-c");
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get("a"));
+		assertFalse(map.containsKey("empty"));
+		assertEquals(3, parent.size());
+	}
+	
+	public void testEntrySetRemove() {
+		LayeredContextMap map = new LayeredContextMap(parent);
+		map.put("c", "local-c");
+		Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Object> entry = iterator.next();
+			if (!entry.getKey().equals("b")) {
+				iterator.remove();
+			}
+		}
+		assertEquals(1, map.size());
+		assertEquals("parent-b", map.get("b"));
+		assertEquals(3, parent.size());
+		try {
+			map.entrySet().iterator().remove();
+			fail("Removing before next() should fail");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+	}
+	
+	public void testEntrySetValue() {
+		LayeredContextMap map = new LayeredContextMap(parent);
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			entry.setValue("changed");
+		}
+		assertEquals("changed", map.get("a"));
+		assertEquals("parent-a", parent.get("a"));
+	}
+}
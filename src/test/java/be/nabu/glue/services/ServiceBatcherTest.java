@@ -0,0 +1,235 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceInstance;
+import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+public class ServiceBatcherTest extends TestCase {
+
+	private Structure item;
+	private DefinedService service, batchService;
+	private AtomicInteger batches;
+	private CountDownLatch release;
+	private ServiceMethodProvider provider;
+	
+	@Override
+	protected void setUp() {
+		item = new Structure();
+		item.setName("item");
+		item.add(new SimpleElementImpl<String>("name", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), item));
+		service = newService("test.single", item, item);
+		batchService = newService("test.batch", newList("input", "items"), newList("output", "results"));
+		batches = new AtomicInteger();
+		release = new CountDownLatch(0);
+		// the batch service echoes the names of the inputs
+		provider = new ServiceMethodProvider(null, null) {
+			@SuppressWarnings("unchecked")
+			@Override
+			ComplexContent runInline(DefinedService service, CombinedExecutionContext combinedContext, ComplexContent input, Map<String, Object> scriptContext) throws ServiceException {
+				batches.incrementAndGet();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					throw new ServiceException(e);
+				}
+				List<ComplexContent> results = new ArrayList<ComplexContent>();
+				for (ComplexContent single : (List<ComplexContent>) input.get("items")) {
+					ComplexContent result = item.newInstance();
+					result.set("name", single.get("name") + "!");
+					results.add(result);
+				}
+				ComplexContent output = service.getServiceInterface().getOutputDefinition().newInstance();
+				output.set("results", results);
+				return output;
+			}
+		};
+		provider.setMetrics(false);
+	}
+	
+	public void testFullBatchIsDispatched() throws Exception {
+		ServiceBatcher batcher = new ServiceBatcher(provider, service, batchService, 2, TimeUnit.MINUTES.toMillis(1));
+		CombinedExecutionContext context = newContext("user");
+		Future<ServiceResult> first = batcher.submit(context, newItem("first"));
+		Future<ServiceResult> second = batcher.submit(context, newItem("second"));
+		assertTrue(first.isDone());
+		assertTrue(second.isDone());
+		assertEquals("first!", first.get().getOutput().get("name"));
+		assertEquals("second!", second.get().getOutput().get("name"));
+		assertEquals(1, batches.get());
+	}
+	
+	public void testWindowDispatches() throws Exception {
+		ServiceBatcher batcher = new ServiceBatcher(provider, service, batchService, 100, 20);
+		Future<ServiceResult> result = batcher.submit(newContext("user"), newItem("first"));
+		assertEquals("first!", result.get(5, TimeUnit.SECONDS).getOutput().get("name"));
+		assertEquals(1, batches.get());
+	}
+	
+	public void testReadingResultDispatches() throws Exception {
+		ServiceBatcher batcher = new ServiceBatcher(provider, service, batchService, 100, TimeUnit.MINUTES.toMillis(1));
+		Future<ServiceResult> result = batcher.submit(newContext("user"), newItem("first"));
+		assertFalse(result.isDone());
+		assertEquals("first!", result.get().getOutput().get("name"));
+	}
+	
+	public void testOnlySameTransactionIsBatched() throws Exception {
+		ServiceBatcher batcher = new ServiceBatcher(provider, service, batchService, 2, TimeUnit.MINUTES.toMillis(1));
+		Future<ServiceResult> first = batcher.submit(newContext("user"), newItem("first"));
+		Future<ServiceResult> second = batcher.submit(newContext("user"), newItem("second"));
+		Future<ServiceResult> other = batcher.submit(newContext("other"), newItem("other"));
+		// every call is in its own transaction so none of the batches is full
+		assertFalse(first.isDone());
+		assertFalse(second.isDone());
+		assertFalse(other.isDone());
+		first.get();
+		second.get();
+		other.get();
+		assertEquals(3, batches.get());
+	}
+	
+	public void testTimedGetRespectsTimeout() throws Exception {
+		release = new CountDownLatch(1);
+		ServiceBatcher batcher = new ServiceBatcher(provider, service, batchService, 100, TimeUnit.MINUTES.toMillis(1));
+		Future<ServiceResult> result = batcher.submit(newContext("user"), newItem("first"));
+		long started = System.nanoTime();
+		try {
+			result.get(50, TimeUnit.MILLISECONDS);
+			fail("The batch is still running");
+		}
+		catch (TimeoutException e) {
+			// expected
+		}
+		finally {
+			release.countDown();
+		}
+		assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+		assertEquals("first!", result.get(5, TimeUnit.SECONDS).getOutput().get("name"));
+	}
+	
+	private ComplexContent newItem(String name) {
+		ComplexContent content = item.newInstance();
+		content.set("name", name);
+		return content;
+	}
+	
+	private Structure newList(String name, String list) {
+		Structure structure = new Structure();
+		structure.setName(name);
+		structure.add(new ComplexElementImpl(list, item, structure, new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+		return structure;
+	}
+	
+	// a context that only knows who is calling, every context has its own transaction
+	private static CombinedExecutionContext newContext(final String user) {
+		return (CombinedExecutionContext) Proxy.newProxyInstance(ServiceBatcherTest.class.getClassLoader(), new Class<?>[] { CombinedExecutionContext.class }, new InvocationHandler() {
+			private Object transaction;
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getPrincipal")) {
+					return new Principal() {
+						@Override
+						public String getName() {
+							return user;
+						}
+					};
+				}
+				else if (method.getName().equals("getTransactionContext")) {
+					if (transaction == null) {
+						transaction = Proxy.newProxyInstance(ServiceBatcherTest.class.getClassLoader(), new Class<?>[] { method.getReturnType() }, new InvocationHandler() {
+							@Override
+							public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+								return null;
+							}
+						});
+					}
+					return transaction;
+				}
+				else if (method.getName().equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				else if (method.getName().equals("equals")) {
+					return proxy == args[0];
+				}
+				return method.getReturnType().equals(boolean.class) ? false : null;
+			}
+		});
+	}
+	
+	private static DefinedService newService(final String id, final ComplexType input, final ComplexType output) {
+		final ServiceInterface serviceInterface = new ServiceInterface() {
+			@Override
+			public ComplexType getInputDefinition() {
+				return input;
+			}
+			@Override
+			public ComplexType getOutputDefinition() {
+				return output;
+			}
+			@Override
+			public ServiceInterface getParent() {
+				return null;
+			}
+		};
+		return new DefinedService() {
+			@Override
+			public ServiceInterface getServiceInterface() {
+				return serviceInterface;
+			}
+			@Override
+			public ServiceInstance newInstance() {
+				return null;
+			}
+			@Override
+			public Set<String> getReferences() {
+				return null;
+			}
+			@Override
+			public String getId() {
+				return id;
+			}
+		};
+	}
+}
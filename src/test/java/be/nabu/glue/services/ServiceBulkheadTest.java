@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.glue.services.ServiceBulkhead.ServiceBulkheadException;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class ServiceBulkheadTest extends TestCase {
+
+	private ExecutorService executor;
+	
+	@Override
+	protected void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+	
+	@Override
+	protected void tearDown() {
+		executor.shutdownNow();
+	}
+	
+	public void testPermitsAreCounted() throws ServiceException {
+		ServiceBulkhead bulkhead = new ServiceBulkhead(2, 0, 0);
+		bulkhead.acquire("test", null);
+		bulkhead.acquire("test", null);
+		assertEquals(2, bulkhead.getInFlight());
+		try {
+			bulkhead.acquire("test", null);
+			fail("All the permits are taken");
+		}
+		catch (ServiceBulkheadException e) {
+			// expected
+		}
+		assertEquals(1, bulkhead.getRejected());
+		assertEquals(2, bulkhead.getInFlight());
+		bulkhead.release();
+		assertEquals(1, bulkhead.getInFlight());
+		bulkhead.acquire("test", null);
+		assertEquals(2, bulkhead.getInFlight());
+	}
+	
+	public void testWaitingCallerGetsReleasedPermit() throws Exception {
+		final ServiceBulkhead bulkhead = new ServiceBulkhead(1, 1, TimeUnit.SECONDS.toMillis(5));
+		bulkhead.acquire("test", null);
+		Future<?> waiting = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws ServiceException {
+				bulkhead.acquire("test", null);
+				return null;
+			}
+		});
+		while (bulkhead.getWaiting() == 0) {
+			Thread.sleep(1);
+		}
+		bulkhead.release();
+		waiting.get(5, TimeUnit.SECONDS);
+		assertEquals(1, bulkhead.getInFlight());
+		assertEquals(0, bulkhead.getWaiting());
+		assertEquals(0, bulkhead.getRejected());
+	}
+	
+	public void testPermitIsReleasedWhenResultIsJoined() throws ServiceException {
+		ServiceBulkhead bulkhead = new ServiceBulkhead(1, 0, 0);
+		bulkhead.acquire("test", null);
+		FutureTask<ServiceResult> task = new FutureTask<ServiceResult>(new Callable<ServiceResult>() {
+			@Override
+			public ServiceResult call() {
+				return newResult();
+			}
+		});
+		FutureComplexContent result = new FutureComplexContent(null, task);
+		result.releaseWhenDone(bulkhead);
+		task.run();
+		// the call is done but the permit is held until someone reads the result
+		assertEquals(1, bulkhead.getInFlight());
+		result.join();
+		assertEquals(0, bulkhead.getInFlight());
+		// the permit is only released once
+		result.join();
+		result.cancel();
+		assertEquals(0, bulkhead.getInFlight());
+	}
+	
+	public void testPermitIsReleasedWhenResultIsCancelled() throws ServiceException {
+		ServiceBulkhead bulkhead = new ServiceBulkhead(1, 0, 0);
+		bulkhead.acquire("test", null);
+		FutureComplexContent result = new FutureComplexContent(null, new FutureTask<ServiceResult>(new Callable<ServiceResult>() {
+			@Override
+			public ServiceResult call() {
+				return newResult();
+			}
+		}));
+		result.releaseWhenDone(bulkhead);
+		result.cancel();
+		assertEquals(0, bulkhead.getInFlight());
+		result.cancel();
+		assertEquals(0, bulkhead.getInFlight());
+	}
+	
+	private static ServiceResult newResult() {
+		return new ServiceResult() {
+			@Override
+			public ComplexContent getOutput() {
+				return null;
+			}
+			@Override
+			public ServiceException getException() {
+				return null;
+			}
+		};
+	}
+}
@@ -0,0 +1,121 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.glue.services.ServiceDeadline.DeadlineExceededException;
+import be.nabu.libs.services.api.ServiceException;
+
+public class ServiceDeadlineTest extends TestCase {
+
+	public void testEarliest() {
+		long first = ServiceDeadline.after(1, TimeUnit.SECONDS);
+		long second = ServiceDeadline.after(1, TimeUnit.MINUTES);
+		assertEquals(first, ServiceDeadline.earliest(first, second));
+		assertEquals(first, ServiceDeadline.earliest(second, first));
+		// no deadline never wins
+		assertEquals(first, ServiceDeadline.earliest(0, first));
+		assertEquals(first, ServiceDeadline.earliest(first, 0));
+		assertEquals(0, ServiceDeadline.earliest(0, 0));
+	}
+	
+	public void testExpiry() throws InterruptedException {
+		assertFalse(ServiceDeadline.isExpired(0));
+		long deadline = ServiceDeadline.after(20, TimeUnit.MILLISECONDS);
+		assertFalse(ServiceDeadline.isExpired(deadline));
+		Thread.sleep(50);
+		assertTrue(ServiceDeadline.isExpired(deadline));
+		try {
+			ServiceDeadline.check(deadline, "test");
+			fail("The deadline has expired");
+		}
+		catch (DeadlineExceededException e) {
+			// expected
+		}
+	}
+	
+	public void testFutureIsCancelledWhenDeadlineExpires() throws Exception {
+		FutureTask<String> future = newBlockingTask(new CountDownLatch(1));
+		try {
+			ServiceDeadline.get(future, ServiceDeadline.after(20, TimeUnit.MILLISECONDS), "test");
+			fail("The future never completes");
+		}
+		catch (DeadlineExceededException e) {
+			// expected
+		}
+		assertTrue(future.isCancelled());
+	}
+	
+	public void testSharedFutureIsNotCancelled() throws Exception {
+		FutureTask<String> future = newBlockingTask(new CountDownLatch(1));
+		try {
+			ServiceDeadline.get(future, ServiceDeadline.after(20, TimeUnit.MILLISECONDS), "test", false);
+			fail("The future never completes");
+		}
+		catch (DeadlineExceededException e) {
+			// expected
+		}
+		assertFalse(future.isCancelled());
+	}
+	
+	public void testFutureWithinDeadline() throws InterruptedException, ExecutionException, DeadlineExceededException {
+		FutureTask<String> future = newBlockingTask(new CountDownLatch(0));
+		future.run();
+		assertEquals("done", ServiceDeadline.get(future, ServiceDeadline.after(1, TimeUnit.SECONDS), "test"));
+		assertEquals("done", ServiceDeadline.get(future, 0, "test"));
+	}
+	
+	public void testFind() {
+		DeadlineExceededException expired = new DeadlineExceededException("test");
+		assertSame(expired, ServiceDeadline.find(new RuntimeException(new ServiceException(expired))));
+		assertNull(ServiceDeadline.find(new RuntimeException()));
+	}
+	
+	public void testBulkheadWaitIsLimitedByDeadline() throws ServiceException {
+		ServiceBulkhead bulkhead = new ServiceBulkhead(1, 1, TimeUnit.MINUTES.toMillis(1));
+		bulkhead.acquire("test", null);
+		long started = System.nanoTime();
+		try {
+			bulkhead.acquire("test", null, ServiceDeadline.after(20, TimeUnit.MILLISECONDS));
+			fail("The permit is never released");
+		}
+		catch (DeadlineExceededException e) {
+			// expected
+		}
+		assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+		// running out of time is not a rejection
+		assertEquals(0, bulkhead.getRejected());
+		assertEquals(0, bulkhead.getWaiting());
+	}
+	
+	private static FutureTask<String> newBlockingTask(final CountDownLatch latch) {
+		return new FutureTask<String>(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				latch.await();
+				return "done";
+			}
+		});
+	}
+}
@@ -0,0 +1,80 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+public class ServiceInputBinderTest extends TestCase {
+
+	private ServiceInputBinder binder;
+	
+	@Override
+	protected void setUp() {
+		Structure input = new Structure();
+		input.setName("input");
+		input.add(new SimpleElementImpl<String>("name", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input));
+		input.add(new SimpleElementImpl<String>("values", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input, new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+		binder = new ServiceInputBinder(null, input);
+	}
+	
+	public void testArgumentCount() {
+		// the last element is a list so any amount of arguments can be used
+		assertEquals(5, binder.getArgumentCount(5));
+		assertEquals(1, binder.getArgumentCount(1));
+	}
+	
+	public void testSingleArgument() {
+		ComplexContent input = binder.bind("test");
+		assertEquals("test", input.get("name"));
+		assertNull(input.get("values"));
+	}
+	
+	public void testListIsPassedAlong() {
+		List<String> values = new ArrayList<String>(Arrays.asList("first", "second"));
+		ComplexContent input = binder.bind("test", values);
+		assertSame(values, input.get("values"));
+	}
+	
+	public void testArrayIsConverted() {
+		ComplexContent input = binder.bind("test", new String[] { "first", "second" });
+		assertEquals(Arrays.asList("first", "second"), input.get("values"));
+	}
+	
+	public void testVarargs() {
+		ComplexContent input = binder.bind("test", "first", "second", "third");
+		assertEquals(Arrays.asList("first", "second", "third"), input.get("values"));
+	}
+	
+	public void testVarargsAreFlattened() {
+		List<String> values = new ArrayList<String>(Arrays.asList("first", "second"));
+		ComplexContent input = binder.bind("test", values, null, "third");
+		assertEquals(Arrays.asList("first", "second", "third"), input.get("values"));
+		// the list that was passed in is not modified
+		assertEquals(2, values.size());
+	}
+}
@@ -0,0 +1,113 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.math.BigDecimal;
+import java.security.Principal;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.structure.Structure;
+
+public class ServiceResultCacheTest extends TestCase {
+
+	private Structure type;
+	
+	@Override
+	protected void setUp() {
+		type = new Structure();
+		type.setName("test");
+		type.add(new SimpleElementImpl<String>("name", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), type));
+		type.add(new SimpleElementImpl<BigDecimal>("amount", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(BigDecimal.class), type));
+	}
+	
+	public void testKeyIsStructural() {
+		ServiceResultCache cache = new ServiceResultCache(0, 10, false);
+		assertEquals(cache.newKey(newContent("test", "1.0"), null), cache.newKey(newContent("test", "1.00"), null));
+		assertFalse(cache.newKey(newContent("test", "1"), null).equals(cache.newKey(newContent("other", "1"), null)));
+		// values we can not compare can not be part of a key
+		assertNull(ServiceResultCache.toKey(new Object()));
+		assertNull(ServiceResultCache.toKey(Arrays.asList("test", new Object())));
+	}
+	
+	public void testKeyIncludesPrincipal() {
+		ServiceResultCache cache = new ServiceResultCache(0, 10, true);
+		ComplexContent input = newContent("test", "1");
+		assertEquals(cache.newKey(input, principal("first")), cache.newKey(input, principal("first")));
+		assertFalse(cache.newKey(input, principal("first")).equals(cache.newKey(input, principal("second"))));
+	}
+	
+	public void testResultsExpire() throws InterruptedException {
+		ServiceResultCache cache = new ServiceResultCache(20, 10, false);
+		Object key = cache.newKey(newContent("test", "1"), null);
+		cache.put(key, newContent("result", "1"), null);
+		assertNotNull(cache.get(key, null));
+		Thread.sleep(50);
+		assertNull(cache.get(key, null));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getEvictions());
+	}
+	
+	public void testOldestResultsAreEvicted() {
+		ServiceResultCache cache = new ServiceResultCache(0, 2, false);
+		Object first = cache.newKey(newContent("first", "1"), null);
+		Object second = cache.newKey(newContent("second", "1"), null);
+		Object third = cache.newKey(newContent("third", "1"), null);
+		cache.put(first, newContent("first", "1"), null);
+		cache.put(second, newContent("second", "1"), null);
+		cache.put(third, newContent("third", "1"), null);
+		assertEquals(2, cache.getSize());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get(first, null));
+		assertNotNull(cache.get(second, null));
+		assertNotNull(cache.get(third, null));
+	}
+	
+	public void testCallersGetTheirOwnCopy() {
+		ServiceResultCache cache = new ServiceResultCache(0, 10, false);
+		Object key = cache.newKey(newContent("test", "1"), null);
+		ComplexContent output = newContent("result", "1");
+		cache.put(key, output, null);
+		// neither the original output nor a hit can change what is cached
+		output.set("name", "changed");
+		ComplexContent hit = cache.get(key, null);
+		assertEquals("result", hit.get("name"));
+		hit.set("name", "changed");
+		assertEquals("result", cache.get(key, null).get("name"));
+	}
+	
+	private ComplexContent newContent(String name, String amount) {
+		ComplexContent content = type.newInstance();
+		content.set("name", name);
+		content.set("amount", new BigDecimal(amount));
+		return content;
+	}
+	
+	private static Principal principal(final String name) {
+		return new Principal() {
+			@Override
+			public String getName() {
+				return name;
+			}
+		};
+	}
+}
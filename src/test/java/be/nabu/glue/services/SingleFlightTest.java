@@ -0,0 +1,153 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.glue.services;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import be.nabu.glue.services.ServiceDeadline.DeadlineExceededException;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class SingleFlightTest extends TestCase {
+
+	private ExecutorService executor;
+	
+	@Override
+	protected void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+	
+	@Override
+	protected void tearDown() {
+		executor.shutdownNow();
+	}
+	
+	public void testConcurrentCallsShareExecution() throws Exception {
+		final SingleFlight singleFlight = new SingleFlight();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		final Callable<ComplexContent> callable = new Callable<ComplexContent>() {
+			@Override
+			public ComplexContent call() throws Exception {
+				calls.incrementAndGet();
+				started.countDown();
+				release.await();
+				return null;
+			}
+		};
+		Future<ComplexContent> owner = executor.submit(new Callable<ComplexContent>() {
+			@Override
+			public ComplexContent call() throws Exception {
+				return singleFlight.execute("key", callable, null);
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Future<ComplexContent> follower = executor.submit(new Callable<ComplexContent>() {
+			@Override
+			public ComplexContent call() throws Exception {
+				return singleFlight.execute("key", callable, null);
+			}
+		});
+		// wait until the follower has joined the flight
+		while (singleFlight.getShared() == 0) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		owner.get(5, TimeUnit.SECONDS);
+		follower.get(5, TimeUnit.SECONDS);
+		assertEquals(1, calls.get());
+		assertEquals(1, singleFlight.getExecutions());
+		assertEquals(0, singleFlight.getInFlight());
+	}
+	
+	public void testRecursiveCallRunsInline() throws Exception {
+		final SingleFlight singleFlight = new SingleFlight();
+		final AtomicInteger calls = new AtomicInteger();
+		singleFlight.execute("key", new Callable<ComplexContent>() {
+			@Override
+			public ComplexContent call() throws Exception {
+				calls.incrementAndGet();
+				return singleFlight.execute("key", new Callable<ComplexContent>() {
+					@Override
+					public ComplexContent call() throws Exception {
+						calls.incrementAndGet();
+						return null;
+					}
+				}, null);
+			}
+		}, null);
+		assertEquals(2, calls.get());
+	}
+	
+	public void testExceptionIsShared() throws Exception {
+		SingleFlight singleFlight = new SingleFlight();
+		try {
+			singleFlight.execute("key", new Callable<ComplexContent>() {
+				@Override
+				public ComplexContent call() throws Exception {
+					throw new IllegalStateException("failed");
+				}
+			}, null);
+			fail("The exception should be propagated");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertEquals(0, singleFlight.getInFlight());
+	}
+	
+	public void testFollowerRespectsDeadline() throws Exception {
+		final SingleFlight singleFlight = new SingleFlight();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<ComplexContent> callable = new Callable<ComplexContent>() {
+			@Override
+			public ComplexContent call() throws Exception {
+				started.countDown();
+				release.await();
+				return null;
+			}
+		};
+		Future<ComplexContent> owner = executor.submit(new Callable<ComplexContent>() {
+			@Override
+			public ComplexContent call() throws Exception {
+				return singleFlight.execute("key", callable, null);
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		try {
+			singleFlight.execute("key", callable, null, ServiceDeadline.after(50, TimeUnit.MILLISECONDS), "test");
+			fail("The follower should give up when its deadline expires");
+		}
+		catch (DeadlineExceededException e) {
+			// expected
+		}
+		// the shared execution is not cancelled by a follower that gives up
+		release.countDown();
+		owner.get(5, TimeUnit.SECONDS);
+		assertFalse(owner.isCancelled());
+	}
+}